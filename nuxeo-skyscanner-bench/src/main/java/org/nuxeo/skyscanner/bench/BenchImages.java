@@ -0,0 +1,213 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.bench;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Synthetic pictures for the benchmarks, and the in-process (Java2D) version
+ * of the resize/crop/watermark steps done by ImageMagick in the operations.
+ */
+public class BenchImages {
+
+    // Same as the skyscannerWatermarkAndEncode command: -geometry +30+30
+    public static final int WATERMARK_MARGIN = 30;
+
+    // Same as the skyscannerWatermarkAndEncode command: -compose dissolve
+    // -define compose:args=95
+    public static final float WATERMARK_DISSOLVE = 0.95f;
+
+    // Default OutputEncoding: -quality 85 -interlace Plane
+    public static final float JPEG_QUALITY = 0.85f;
+
+    /**
+     * Parse "WxH"
+     */
+    public static int[] parseSize(String inSize) {
+        String[] parts = inSize.toLowerCase().split("x");
+        return new int[] { Integer.parseInt(parts[0]),
+                Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * A picture with gradients, shapes and noise, so it compresses like a
+     * photo more than like a flat color
+     */
+    public static BufferedImage createPicture(int inWidth, int inHeight,
+            long inSeed) {
+
+        Random random = new Random(inSeed);
+        BufferedImage image = new BufferedImage(inWidth, inHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()),
+                    inWidth, inHeight, new Color(random.nextInt())));
+            g.fillRect(0, 0, inWidth, inHeight);
+            for (int i = 0; i < 40; i++) {
+                g.setColor(new Color(random.nextInt()));
+                int w = 1 + random.nextInt(Math.max(1, inWidth / 4));
+                int h = 1 + random.nextInt(Math.max(1, inHeight / 4));
+                g.fillOval(random.nextInt(inWidth), random.nextInt(inHeight),
+                        w, h);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        // Noise, on a sparse grid to keep the setup time acceptable for 80 MP
+        for (int y = 0; y < inHeight; y += 3) {
+            for (int x = (y % 2); x < inWidth; x += 2) {
+                int p = image.getRGB(x, y);
+                int n = random.nextInt(32) - 16;
+                int r = Math.max(0, Math.min(255, ((p >> 16) & 0xFF) + n));
+                int gr = Math.max(0, Math.min(255, ((p >> 8) & 0xFF) + n));
+                int b = Math.max(0, Math.min(255, (p & 0xFF) + n));
+                image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+            }
+        }
+
+        return image;
+    }
+
+    public static BufferedImage createWatermark() {
+
+        BufferedImage image = new BufferedImage(240, 80,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(new Color(255, 255, 255, 180));
+            g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 40));
+            g.drawString("Skyscanner", 10, 55);
+        } finally {
+            g.dispose();
+        }
+
+        return image;
+    }
+
+    public static File writeTempFile(BufferedImage inImage, String inFormat)
+            throws IOException {
+
+        File f = File.createTempFile("SkyScannerBench-", "." + inFormat);
+        f.deleteOnExit();
+        if (!ImageIO.write(inImage, inFormat, f)) {
+            throw new IOException("No writer for " + inFormat);
+        }
+
+        return f;
+    }
+
+    /**
+     * Encode as the default OutputEncoding does: quality 85, progressive,
+     * 4:2:0 (the default of the JPEG writer for RGB), no metadata. The
+     * pictures here are TYPE_INT_RGB, so already sRGB.
+     */
+    public static void writeJpeg(BufferedImage inImage, File inFile)
+            throws IOException {
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+
+        inFile.delete();
+        ImageOutputStream out = ImageIO.createImageOutputStream(inFile);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(inImage, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+    }
+
+    public static BufferedImage resize(BufferedImage inImage, int inWidth,
+            int inHeight) {
+
+        BufferedImage result = new BufferedImage(inWidth, inHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(inImage, 0, 0, inWidth, inHeight, null);
+        } finally {
+            g.dispose();
+        }
+
+        return result;
+    }
+
+    /*
+     * A copy, not getSubimage(), so the cost of the crop is measured (and the
+     * big raster can be released)
+     */
+    public static BufferedImage crop(BufferedImage inImage, int inLeft,
+            int inTop, int inWidth, int inHeight) {
+
+        BufferedImage result = new BufferedImage(inWidth, inHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage(inImage, 0, 0, inWidth, inHeight, inLeft, inTop,
+                    inLeft + inWidth, inTop + inHeight, null);
+        } finally {
+            g.dispose();
+        }
+
+        return result;
+    }
+
+    /**
+     * Watermark in place, top right corner ("NorthEast")
+     */
+    public static BufferedImage watermark(BufferedImage inImage,
+            BufferedImage inWatermark) {
+
+        Graphics2D g = inImage.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.getInstance(
+                    AlphaComposite.SRC_OVER, WATERMARK_DISSOLVE));
+            g.drawImage(inWatermark, inImage.getWidth() - inWatermark.getWidth()
+                    - WATERMARK_MARGIN, WATERMARK_MARGIN, null);
+        } finally {
+            g.dispose();
+        }
+
+        return inImage;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.skyscanner.crop.ResizeGeometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Resize/crop geometry of the batch operation (ResizeGeometry)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class GeometryBenchmark {
+
+    @Param({ "4000x3000", "3000x4000", "6000x4000", "10320x7752" })
+    public String source;
+
+    @Param({ "468x283", "1200x627", "1200x1200" })
+    public String profile;
+
+    protected int origWidth;
+
+    protected int origHeight;
+
+    protected int[] target;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchImages.parseSize(source);
+        origWidth = size[0];
+        origHeight = size[1];
+        target = ResizeGeometry.getProfileSize(profile);
+    }
+
+    @Benchmark
+    public ResizeGeometry compute() {
+        return ResizeGeometry.compute(origWidth, origHeight, target[0],
+                target[1]);
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Runs the same command lines as the converters of skyscanner-converters.xml
+ * (and as the ImageCrop operation of nuxeo-labs), outside of Nuxeo, so the
+ * command line backend can be compared with the in-process one.
+ */
+public class ImageMagick {
+
+    public static boolean isAvailable() {
+        try {
+            run("convert", "-version");
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // skyscannerResizePicture
+    public static void resize(File inSource, int inWidth, int inHeight,
+            File inTarget) throws IOException {
+        run("convert", inSource.getAbsolutePath(), "-resize", inWidth + "x"
+                + inHeight, inTarget.getAbsolutePath());
+    }
+
+    // ImageCrop (nuxeo-labs)
+    public static void crop(File inSource, int inLeft, int inTop,
+            int inWidth, int inHeight, File inTarget) throws IOException {
+        run("convert", inSource.getAbsolutePath(), "-crop", inWidth + "x"
+                + inHeight + "+" + inLeft + "+" + inTop, "+repage",
+                inTarget.getAbsolutePath());
+    }
+
+    /*
+     * skyscannerWatermarkAndEncode, with the default OutputEncoding (JPEG,
+     * quality 85, progressive, 4:2:0, stripped). inTarget must be a .jpg
+     */
+    public static void watermark(File inSource, File inWatermark,
+            File inTarget) throws IOException {
+        run("convert", inSource.getAbsolutePath(),
+                inWatermark.getAbsolutePath(), "-gravity", "NorthEast",
+                "-geometry", "+30+30", "-compose", "dissolve", "-define",
+                "compose:args=95", "-composite", "-background", "white",
+                "-alpha", "remove", "-colorspace", "sRGB", "+profile", "*",
+                "-quality", "85", "-interlace", "Plane", "-sampling-factor",
+                "4:2:0", "-define", "jpeg:optimize-coding=true",
+                inTarget.getAbsolutePath());
+    }
+
+    protected static void run(String... inCommand) throws IOException {
+
+        ProcessBuilder pb = new ProcessBuilder(inCommand);
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        // Drain the output, or the process may block
+        InputStream in = process.getInputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Nothing
+            }
+        } finally {
+            in.close();
+        }
+
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (exitCode != 0) {
+            throw new IOException("Command failed (" + exitCode + "): "
+                    + Arrays.toString(inCommand));
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.nuxeo.skyscanner.crop.ResizeGeometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resize, crop and watermark, as done by SkyScannerBatchResizeWatermarkOp,
+ * from 12 MP up to 80 MP sources, for each size profile.
+ * <p>
+ * "inProcess*" benchmarks use Java2D, "commandLine*" benchmarks run the same
+ * ImageMagick commands as the converters, watermark and encoding in one call
+ * like the operation (they fail if ImageMagick is not installed: exclude them
+ * with <code>-e commandLine</code>). Both paths encode with the default
+ * OutputEncoding (JPEG quality 85, progressive, sRGB), and the size of the
+ * output of each benchmark is printed at the end of its trial, after the
+ * times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PipelineBenchmark {
+
+    // 12 MP (4:3), 24 MP (3:2), 80 MP (4:3)
+    @Param({ "4000x3000", "6000x4000", "10320x7752" })
+    public String source;
+
+    @Param({ "468x283", "1200x627", "1200x1200" })
+    public String profile;
+
+    protected BufferedImage sourceImage;
+
+    protected BufferedImage resizedImage;
+
+    protected BufferedImage watermarkImage;
+
+    protected File sourceFile;
+
+    protected File resizedFile;
+
+    protected File croppedFile;
+
+    protected File watermarkFile;
+
+    protected File targetFile;
+
+    protected ResizeGeometry geometry;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        int[] size = BenchImages.parseSize(source);
+        int[] target = ResizeGeometry.getProfileSize(profile);
+
+        sourceImage = BenchImages.createPicture(size[0], size[1], 42);
+        watermarkImage = BenchImages.createWatermark();
+        geometry = ResizeGeometry.compute(size[0], size[1], target[0],
+                target[1]);
+        resizedImage = BenchImages.resize(sourceImage, geometry.widthFor1200,
+                geometry.heightFor1200);
+
+        sourceFile = BenchImages.writeTempFile(sourceImage, "jpg");
+        resizedFile = BenchImages.writeTempFile(resizedImage, "jpg");
+        watermarkFile = BenchImages.writeTempFile(watermarkImage, "png");
+        croppedFile = File.createTempFile("SkyScannerBench-", ".jpg");
+        targetFile = File.createTempFile("SkyScannerBench-", ".jpg");
+
+        if (!ImageMagick.isAvailable()) {
+            System.err.println("ImageMagick not found, commandLine* benchmarks will fail");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Each trial runs a single benchmark: the file is its last output
+        if (targetFile != null && targetFile.length() > 0) {
+            System.out.println(String.format(
+                    "Output size (source %s, profile %s): %d bytes", source,
+                    profile, targetFile.length()));
+        }
+        for (File f : new File[] { sourceFile, resizedFile, croppedFile,
+                watermarkFile, targetFile }) {
+            if (f != null) {
+                f.delete();
+            }
+        }
+        sourceImage = null;
+        resizedImage = null;
+    }
+
+    // ============================== In-process (Java2D)
+    @Benchmark
+    public BufferedImage inProcessResize() {
+        return BenchImages.resize(sourceImage, geometry.widthFor1200,
+                geometry.heightFor1200);
+    }
+
+    @Benchmark
+    public BufferedImage inProcessCropAndWatermark() {
+        BufferedImage cropped = BenchImages.crop(resizedImage,
+                geometry.cropLeft, geometry.cropTop, geometry.targetWidth,
+                geometry.targetHeight);
+        return BenchImages.watermark(cropped, watermarkImage);
+    }
+
+    /*
+     * Everything, from the file on disk to the file on disk, like the
+     * operation does
+     */
+    @Benchmark
+    public File inProcessFullPipeline() throws IOException {
+        BufferedImage image = ImageIO.read(sourceFile);
+        image = BenchImages.resize(image, geometry.widthFor1200,
+                geometry.heightFor1200);
+        image = BenchImages.crop(image, geometry.cropLeft, geometry.cropTop,
+                geometry.targetWidth, geometry.targetHeight);
+        image = BenchImages.watermark(image, watermarkImage);
+        BenchImages.writeJpeg(image, targetFile);
+        return targetFile;
+    }
+
+    // ============================== Command line (ImageMagick)
+    @Benchmark
+    public File commandLineResize() throws IOException {
+        ImageMagick.resize(sourceFile, geometry.widthFor1200,
+                geometry.heightFor1200, targetFile);
+        return targetFile;
+    }
+
+    @Benchmark
+    public File commandLineCropAndWatermark() throws IOException {
+        ImageMagick.crop(resizedFile, geometry.cropLeft, geometry.cropTop,
+                geometry.targetWidth, geometry.targetHeight, croppedFile);
+        ImageMagick.watermark(croppedFile, watermarkFile, targetFile);
+        return targetFile;
+    }
+
+    @Benchmark
+    public File commandLineFullPipeline() throws IOException {
+        ImageMagick.resize(sourceFile, geometry.widthFor1200,
+                geometry.heightFor1200, resizedFile);
+        ImageMagick.crop(resizedFile, geometry.cropLeft, geometry.cropTop,
+                geometry.targetWidth, geometry.targetHeight, croppedFile);
+        ImageMagick.watermark(croppedFile, watermarkFile, targetFile);
+        return targetFile;
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.skyscanner.crop.ImagingMetrics;
+import org.nuxeo.skyscanner.crop.MiscTools;
+import org.nuxeo.skyscanner.crop.SkyScannerBatchResizeWatermarkOp;
+import org.nuxeo.skyscanner.crop.SkyScannerCropAndSaveInCroppedPictures;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Throughput of SkyScannerBatchResizeWatermarkOp and
+ * SkyScannerCropAndSaveInCroppedPictures, in the test runtime, on a generated
+ * corpus of pictures (mixed sizes and formats).
+ * <p>
+ * For each concurrency level, reports images/sec, the p50/p99 end-to-end
+ * latency of a picture (the operation call, scheduler wait included), the peak
+ * heap and the p50/p99 latency of each stage (read from the stage timers of
+ * ImagingMetrics, so they are per picture even when a batch processes several
+ * pictures). A batch call processes several pictures: each of them is counted
+ * with the duration of the call divided by their number. The
+ * corpus is generated once, for all the tests. Not a unit test: only runs with
+ * <code>mvn -pl nuxeo-skyscanner-bench test -Pload</code>. Configured with
+ * system properties:
+ * <ul>
+ * <li>skyscanner.load.images: size of the corpus (default 40)</li>
+ * <li>skyscanner.load.concurrency: levels to test (default "1,2,4")</li>
+ * <li>skyscanner.load.size: batch size profile (default "1200x627")</li>
+ * </ul>
+ * Requires ImageMagick (and nuxeo-labs for the ImageCrop operation).
+ */
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(cleanup = Granularity.CLASS)
+@Deploy({ "org.nuxeo.ecm.platform.commandline.executor",
+        "org.nuxeo.ecm.platform.convert", "org.nuxeo.ecm.platform.picture.api",
+        "org.nuxeo.ecm.platform.picture.core",
+        "org.nuxeo.ecm.platform.picture.convert",
+        "org.nuxeo.ecm.relations.api", "org.nuxeo.ecm.relations",
+        "org.nuxeo.ecm.relations.jena", "org.nuxeo.ecm.automation.features",
+        "org.nuxeo.labs.operations", "nuxeo-skyscanner-utils" })
+public class ImagingLoadTest {
+
+    private static final Log log = LogFactory.getLog(ImagingLoadTest.class);
+
+    // Width x height, format. Landscape, portrait, square, JPEG and PNG.
+    protected static final String[][] CORPUS_TYPES = {
+            { "2400x1600", "jpg" }, { "4000x3000", "jpg" },
+            { "1800x2700", "jpg" }, { "3000x3000", "jpg" },
+            { "2000x1500", "png" } };
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected AutomationService automationService;
+
+    protected static final String STAGE_PREFIX = MetricRegistry.name(
+            ImagingMetrics.PREFIX, "stage");
+
+    // Generated by the first test, kept for the others (the repository is
+    // cleaned up once per class)
+    protected static List<String> corpusIds = new ArrayList<String>();
+
+    protected static String watermarkId;
+
+    protected int corpusSize = Integer.getInteger("skyscanner.load.images", 40);
+
+    protected String sizeProfile = System.getProperty("skyscanner.load.size",
+            "1200x627");
+
+    protected int[] concurrencyLevels;
+
+    // End-to-end latency of each picture of the current run
+    protected Timer pictureLatency;
+
+    @Before
+    public void setup() throws Exception {
+
+        String[] levels = System.getProperty("skyscanner.load.concurrency",
+                "1,2,4").split(",");
+        concurrencyLevels = new int[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            concurrencyLevels[i] = Integer.parseInt(levels[i].trim());
+        }
+
+        if (!corpusIds.isEmpty()) {
+            return;
+        }
+
+        // ============================== Fixtures
+        if (!session.exists(new PathRef("/default-domain/Watermarks"))) {
+            DocumentModel folder = session.createDocumentModel(
+                    "/default-domain", "Watermarks", "Folder");
+            folder.setPropertyValue("dc:title", "Watermarks");
+            session.createDocument(folder);
+        }
+        File wmFile = BenchImages.writeTempFile(
+                BenchImages.createWatermark(), "png");
+        watermarkId = createPicture("/default-domain/Watermarks",
+                "watermark.png", wmFile, "image/png", 240, 80).getId();
+
+        // Creates the "Cropped Pictures" workspace
+        MiscTools.getCroppedPictureWorkspace(session);
+
+        DocumentModel corpus = session.createDocumentModel("/default-domain",
+                "LoadCorpus", "Folder");
+        corpus = session.createDocument(corpus);
+
+        // ============================== Corpus
+        for (int i = 0; i < corpusSize; i++) {
+            String[] type = CORPUS_TYPES[i % CORPUS_TYPES.length];
+            int[] dim = BenchImages.parseSize(type[0]);
+            BufferedImage image = BenchImages.createPicture(dim[0], dim[1], i);
+            File f = BenchImages.writeTempFile(image, type[1]);
+            String mimeType = "jpg".equals(type[1]) ? "image/jpeg"
+                    : "image/png";
+            corpusIds.add(createPicture(corpus.getPathAsString(),
+                    "picture-" + i + "." + type[1], f, mimeType, dim[0],
+                    dim[1]).getId());
+        }
+
+        session.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        Framework.getService(EventService.class).waitForAsyncCompletion();
+        TransactionHelper.startTransaction();
+    }
+
+    protected DocumentModel createPicture(String inParentPath,
+            String inFileName, File inFile, String inMimeType, int inWidth,
+            int inHeight) {
+
+        Blob blob = new FileBlob(inFile);
+        blob.setFilename(inFileName);
+        blob.setMimeType(inMimeType);
+
+        DocumentModel doc = session.createDocumentModel(inParentPath,
+                inFileName, "Picture");
+        doc.setPropertyValue("dc:title", inFileName);
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc.setPropertyValue("picture:info/width", (long) inWidth);
+        doc.setPropertyValue("picture:info/height", (long) inHeight);
+
+        return session.createDocument(doc);
+    }
+
+    @Test
+    public void batchThroughput() throws Exception {
+
+        for (int concurrency : concurrencyLevels) {
+            run("Batch " + sizeProfile, concurrency, new PictureTask() {
+                @Override
+                public void process(CoreSession inSession,
+                        DocumentModelList inDocs) throws Exception {
+                    OperationContext ctx = new OperationContext(inSession);
+                    ctx.setInput(inDocs);
+                    Map<String, Object> params = new HashMap<String, Object>();
+                    params.put("size", sizeProfile);
+                    params.put("watermarkDocId", watermarkId);
+                    long start = System.nanoTime();
+                    automationService.run(ctx,
+                            SkyScannerBatchResizeWatermarkOp.ID, params);
+                    recordCall(System.nanoTime() - start, inDocs.size());
+                }
+            });
+        }
+    }
+
+    @Test
+    public void interactiveCropThroughput() throws Exception {
+
+        final Random random = new Random(42);
+        for (int concurrency : concurrencyLevels) {
+            run("Crop", concurrency, new PictureTask() {
+                @Override
+                public void process(CoreSession inSession,
+                        DocumentModelList inDocs) throws Exception {
+                    // One crop per picture, as an editor does
+                    for (DocumentModel doc : inDocs) {
+                        long w = (Long) doc.getPropertyValue("picture:info/width");
+                        long h = (Long) doc.getPropertyValue("picture:info/height");
+                        long cropW, cropH, left, top;
+                        synchronized (random) {
+                            cropW = w / 4 + random.nextInt((int) (w / 2));
+                            cropH = h / 4 + random.nextInt((int) (h / 2));
+                            left = random.nextInt((int) (w - cropW));
+                            top = random.nextInt((int) (h - cropH));
+                        }
+                        OperationContext ctx = new OperationContext(inSession);
+                        ctx.setInput(doc);
+                        Map<String, Object> params = new HashMap<String, Object>();
+                        params.put("top", top);
+                        params.put("left", left);
+                        params.put("width", cropW);
+                        params.put("height", cropH);
+                        params.put("watermarkDocId", watermarkId);
+                        params.put("metadataFromSource", true);
+                        long start = System.nanoTime();
+                        automationService.run(ctx,
+                                SkyScannerCropAndSaveInCroppedPictures.ID,
+                                params);
+                        recordCall(System.nanoTime() - start, 1);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * inPictures pictures processed by one operation call of inNanos
+     */
+    protected void recordCall(long inNanos, int inPictures) {
+        for (int i = 0; i < inPictures; i++) {
+            pictureLatency.update(inNanos / inPictures, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    protected interface PictureTask {
+        void process(CoreSession inSession, DocumentModelList inDocs)
+                throws Exception;
+    }
+
+    /*
+     * Process the whole corpus with inConcurrency threads, each with its own
+     * session and transaction and its part of the corpus as a single list
+     */
+    protected void run(String inLabel, int inConcurrency,
+            final PictureTask inTask) throws Exception {
+
+        final String repositoryName = session.getRepositoryName();
+
+        // Split the corpus
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < inConcurrency; i++) {
+            chunks.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < corpusIds.size(); i++) {
+            chunks.get(i % inConcurrency).add(corpusIds.get(i));
+        }
+
+        TransactionHelper.commitOrRollbackTransaction();
+        System.gc();
+        resetPeakHeap();
+        resetStageTimers();
+        pictureLatency = new Timer();
+
+        ExecutorService executor = Executors.newFixedThreadPool(inConcurrency);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        long start = System.nanoTime();
+        for (final List<String> chunk : chunks) {
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    TransactionHelper.startTransaction();
+                    CoreSession threadSession = CoreInstance.openCoreSession(
+                            repositoryName, session.getPrincipal());
+                    try {
+                        DocumentModelList docs = new DocumentModelListImpl();
+                        for (String id : chunk) {
+                            docs.add(threadSession.getDocument(new IdRef(id)));
+                        }
+                        inTask.process(threadSession, docs);
+                        threadSession.save();
+                    } finally {
+                        threadSession.close();
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                    return chunk.size();
+                }
+            }));
+        }
+
+        int processed = 0;
+        for (Future<Integer> f : futures) {
+            processed += f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        long peakHeap = getPeakHeap();
+        TransactionHelper.startTransaction();
+
+        assertEquals(corpusIds.size(), processed);
+
+        double imagesPerSec = processed / (elapsed / 1e9);
+        Snapshot latency = pictureLatency.getSnapshot();
+        StringBuilder report = new StringBuilder(String.format(
+                "%s, concurrency %d: %d images, %.2f images/sec, p50 %d ms, p99 %d ms, peak heap %d MB",
+                inLabel, inConcurrency, processed, imagesPerSec,
+                (long) latency.getMedian() / 1000000,
+                (long) latency.get99thPercentile() / 1000000,
+                peakHeap / (1024 * 1024)));
+        for (Map.Entry<String, Timer> e : getStageTimers().entrySet()) {
+            Snapshot snapshot = e.getValue().getSnapshot();
+            report.append(String.format("\n    %s: %d calls, p50 %d ms, p99 %d ms",
+                    e.getKey().substring(STAGE_PREFIX.length() + 1),
+                    e.getValue().getCount(),
+                    (long) snapshot.getMedian() / 1000000,
+                    (long) snapshot.get99thPercentile() / 1000000));
+        }
+        log.warn(report);
+    }
+
+    protected static MetricRegistry getRegistry() {
+        return SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+    }
+
+    protected static SortedMap<String, Timer> getStageTimers() {
+        return getRegistry().getTimers(new MetricFilter() {
+            @Override
+            public boolean matches(String inName, Metric inMetric) {
+                return inName.startsWith(STAGE_PREFIX + ".");
+            }
+        });
+    }
+
+    /*
+     * The stage timers are created again on the next call, so each run only
+     * reports its own pictures
+     */
+    protected static void resetStageTimers() {
+        for (String name : getStageTimers().keySet()) {
+            getRegistry().remove(name);
+        }
+    }
+
+    protected static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /*
+     * Sum of the peaks of each pool: an upper bound of the real peak, good
+     * enough to compare runs
+     */
+    protected static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the imaging pipeline, registered in the platform registry (so
+ * they are exposed via JMX, and by any reporter configured in the platform).
+ * <p>
+ * All names start with "nuxeo.skyscanner.imaging":
+ * <ul>
+ * <li>stage.<i>name</i>: one timer per stage (resize, crop, ...)</li>
+ * <li>stage.<i>name</i>.errors: error counter per stage</li>
+ * <li>bytes.in/bytes.out: size of the pictures read/produced</li>
+ * <li>batch.pending: pictures waiting in running batches</li>
+ * <li>cache.<i>name</i>.hits/misses/ratio</li>
+ * <li>scheduler.*: slots of the ImagingScheduler (waiting, running, wait
+ * time per priority)</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class ImagingMetrics {
+
+    public static final String PREFIX = "nuxeo.skyscanner.imaging";
+
+    public static final String RESIZE = "resize";
+
+    public static final String CROP = "crop";
+
+    public static final String WATERMARK = "watermark";
+
+    public static final String ENCODE = "encode";
+
+    public static final String CREATE_DOCUMENT = "createDocument";
+
+    public static final String PICTURE_VIEWS = "pictureViews";
+
+    public static final String METADATA_MAPPING = "metadataMapping";
+
+    public static final String RELATION = "relation";
+
+    public static final String SMART_CROP = "smartCrop";
+
+    public static final String SMART_CROP_CACHE = "smartCrop";
+
+    public static final String CROP_SERVLET = "cropServlet";
+
+    public static final String CROP_SERVLET_CACHE = "cropServlet";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    // Caches whose ratio gauge is registered
+    protected static final ConcurrentHashMap<String, Boolean> cacheRatios = new ConcurrentHashMap<String, Boolean>();
+
+    protected static final Counter batchPending = registry.counter(MetricRegistry.name(
+            PREFIX, "batch", "pending"));
+
+    /**
+     * Start the timer of the stage. Caller must stop() the returned context
+     * (in a finally block)
+     */
+    public static Timer.Context time(String inStage) {
+        return registry.timer(MetricRegistry.name(PREFIX, "stage", inStage)).time();
+    }
+
+    public static void error(String inStage) {
+        registry.counter(MetricRegistry.name(PREFIX, "stage", inStage, "errors")).inc();
+    }
+
+    public static void bytesIn(Blob inBlob) {
+        updateBytes("in", inBlob);
+    }
+
+    public static void bytesOut(Blob inBlob) {
+        updateBytes("out", inBlob);
+    }
+
+    protected static void updateBytes(String inWhat, Blob inBlob) {
+        if (inBlob != null && inBlob.getLength() >= 0) {
+            registry.histogram(MetricRegistry.name(PREFIX, "bytes", inWhat)).update(
+                    inBlob.getLength());
+        }
+    }
+
+    public static void batchQueued(int inCount) {
+        batchPending.inc(inCount);
+    }
+
+    public static void batchDequeued(int inCount) {
+        batchPending.dec(inCount);
+    }
+
+    /**
+     * Start the timer of the wait for a scheduler slot. Caller must stop() the
+     * returned context
+     */
+    public static Timer.Context timeWait(String inPriority) {
+        return registry.timer(MetricRegistry.name(PREFIX, "scheduler", inPriority, "wait")).time();
+    }
+
+    /**
+     * Register the gauge (once, next calls with the same name are ignored)
+     */
+    public static void registerGauge(String inName, Gauge<?> inGauge) {
+
+        String name = MetricRegistry.name(PREFIX, inName);
+        synchronized (registry) {
+            if (!registry.getGauges().containsKey(name)) {
+                registry.register(name, inGauge);
+            }
+        }
+    }
+
+    public static void cacheHit(String inCache) {
+        registerCacheRatio(inCache);
+        registry.meter(MetricRegistry.name(PREFIX, "cache", inCache, "hits")).mark();
+    }
+
+    public static void cacheMiss(String inCache) {
+        registerCacheRatio(inCache);
+        registry.meter(MetricRegistry.name(PREFIX, "cache", inCache, "misses")).mark();
+    }
+
+    protected static void registerCacheRatio(final String inCache) {
+
+        // Called for each hit and miss: getGauges() is a sorted copy of all
+        // the gauges, only call it once per cache
+        if (cacheRatios.putIfAbsent(inCache, Boolean.TRUE) != null) {
+            return;
+        }
+
+        String name = MetricRegistry.name(PREFIX, "cache", inCache, "ratio");
+        synchronized (registry) {
+            if (!registry.getGauges().containsKey(name)) {
+                registry.register(name, new RatioGauge() {
+                    @Override
+                    protected Ratio getRatio() {
+                        long hits = registry.meter(
+                                MetricRegistry.name(PREFIX, "cache", inCache,
+                                        "hits")).getCount();
+                        long misses = registry.meter(
+                                MetricRegistry.name(PREFIX, "cache", inCache,
+                                        "misses")).getCount();
+                        return Ratio.of(hits, hits + misses);
+                    }
+                });
+            }
+        }
+    }
+
+}
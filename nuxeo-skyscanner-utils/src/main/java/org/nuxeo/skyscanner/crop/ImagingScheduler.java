@@ -0,0 +1,251 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+
+/**
+ * Limits the number of pictures processed at the same time (ImageMagick
+ * calls, document creation), with two priorities: an editor's crop
+ * (INTERACTIVE) goes before the pictures of a batch (BATCH).
+ * <p>
+ * <ul>
+ * <li>skyscanner.imaging.maxConcurrent: total slots (default: number of
+ * processors)</li>
+ * <li>skyscanner.imaging.interactiveReserved: slots batches can never use
+ * (default 1), so an interactive crop never waits for a batch picture to
+ * finish. Batches always have at least one slot</li>
+ * <li>skyscanner.imaging.slotWaitSeconds: how long a picture waits for a slot
+ * (default 300), then fails</li>
+ * </ul>
+ * A batch picture also waits as long as an interactive request is waiting.
+ * Batches acquire a slot per picture, so they give way between two pictures.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ImagingScheduler.Slot slot = ImagingScheduler.getInstance().acquire(
+ *         ImagingScheduler.Priority.BATCH);
+ * try {
+ *     ...
+ * } finally {
+ *     slot.release();
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class ImagingScheduler {
+
+    private static final Log log = LogFactory.getLog(ImagingScheduler.class);
+
+    public static final String MAX_CONCURRENT_PROPERTY = "skyscanner.imaging.maxConcurrent";
+
+    public static final String INTERACTIVE_RESERVED_PROPERTY = "skyscanner.imaging.interactiveReserved";
+
+    public static final String WAIT_SECONDS_PROPERTY = "skyscanner.imaging.slotWaitSeconds";
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    private static ImagingScheduler instance = null;
+
+    protected final int maxConcurrent;
+
+    protected final int maxBatch;
+
+    protected final long waitMillis;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final Condition slotFreed = lock.newCondition();
+
+    protected int running = 0;
+
+    protected int runningBatch = 0;
+
+    protected int waitingInteractive = 0;
+
+    protected int waitingBatch = 0;
+
+    public static synchronized ImagingScheduler getInstance() {
+        if (instance == null) {
+            instance = new ImagingScheduler();
+        }
+        return instance;
+    }
+
+    protected ImagingScheduler() {
+
+        this(Integer.parseInt(Framework.getProperty(MAX_CONCURRENT_PROPERTY, ""
+                + Runtime.getRuntime().availableProcessors())),
+                Integer.parseInt(Framework.getProperty(
+                        INTERACTIVE_RESERVED_PROPERTY, "1")),
+                Long.parseLong(Framework.getProperty(WAIT_SECONDS_PROPERTY,
+                        "300")) * 1000);
+    }
+
+    protected ImagingScheduler(int inMaxConcurrent, int inReserved,
+            long inWaitMillis) {
+
+        maxConcurrent = Math.max(1, inMaxConcurrent);
+        waitMillis = inWaitMillis;
+        // Batches must be able to run
+        if (maxConcurrent <= inReserved) {
+            log.warn(INTERACTIVE_RESERVED_PROPERTY + " (" + inReserved
+                    + ") leaves no slot to batches with "
+                    + MAX_CONCURRENT_PROPERTY + "=" + maxConcurrent
+                    + ": batches get 1 slot, and can delay interactive crops");
+        }
+        maxBatch = Math.max(1, maxConcurrent - inReserved);
+
+        ImagingMetrics.registerGauge("scheduler.interactive.queued",
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return waitingInteractive;
+                    }
+                });
+        ImagingMetrics.registerGauge("scheduler.batch.queued",
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return waitingBatch;
+                    }
+                });
+        ImagingMetrics.registerGauge("scheduler.running",
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return running;
+                    }
+                });
+    }
+
+    /**
+     * Wait for a slot. The returned slot must be released (in a finally
+     * block)
+     *
+     * @throws ClientException if no slot is free after
+     *             skyscanner.imaging.slotWaitSeconds
+     */
+    public Slot acquire(Priority inPriority) {
+
+        boolean interactive = inPriority == Priority.INTERACTIVE;
+        Timer.Context timer = ImagingMetrics.timeWait(inPriority.name().toLowerCase());
+        lock.lock();
+        try {
+            if (interactive) {
+                waitingInteractive += 1;
+            } else {
+                waitingBatch += 1;
+            }
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                while (!canRun(interactive)) {
+                    if (nanos <= 0) {
+                        throw new ClientException("No imaging slot ("
+                                + inPriority + ") after " + waitMillis
+                                + " ms, " + running + " running, "
+                                + waitingInteractive + " interactive and "
+                                + waitingBatch + " batch waiting");
+                    }
+                    nanos = slotFreed.awaitNanos(nanos);
+                }
+            } finally {
+                if (interactive) {
+                    waitingInteractive -= 1;
+                    // Batches waiting only for this request can run now,
+                    // whether it got its slot or timed out
+                    slotFreed.signalAll();
+                } else {
+                    waitingBatch -= 1;
+                }
+            }
+
+            running += 1;
+            if (!interactive) {
+                runningBatch += 1;
+            }
+
+            return new Slot(interactive);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for an imaging slot", e);
+        } finally {
+            lock.unlock();
+            timer.stop();
+        }
+    }
+
+    // Must be called with the lock held
+    protected boolean canRun(boolean inInteractive) {
+
+        if (running >= maxConcurrent) {
+            return false;
+        }
+        if (inInteractive) {
+            return true;
+        }
+        return waitingInteractive == 0 && runningBatch < maxBatch;
+    }
+
+    protected void release(boolean inInteractive) {
+
+        lock.lock();
+        try {
+            running -= 1;
+            if (!inInteractive) {
+                runningBatch -= 1;
+            }
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public class Slot {
+
+        protected final boolean interactive;
+
+        protected boolean released = false;
+
+        protected Slot(boolean inInteractive) {
+            interactive = inInteractive;
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                ImagingScheduler.this.release(interactive);
+            }
+        }
+    }
+
+}
@@ -16,9 +16,10 @@
  */
 package org.nuxeo.skyscanner.crop;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
@@ -30,9 +31,12 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
-import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 import org.nuxeo.runtime.api.Framework;
 
+import com.codahale.metrics.Timer;
+
 /**
  * Shared code and misc (avoid copy-paste of code, basically)
  */
@@ -46,6 +50,12 @@ public class MiscTools {
 
     protected static final String NxLAB_CROP_OPERATION = "ImageCrop";
 
+    protected static final String IMAGE_METADATA_SCHEMA = "image_metadata";
+
+    // Fields of image_metadata describing the geometry of the binary
+    protected static final String[] IMAGE_METADATA_GEOMETRY_FIELDS = {
+            "pixel_xdimension", "pixel_ydimension" };
+
     /**
      * Get the "Cropped Pictures" workspace, creates it if not found.
      * <p>
@@ -119,6 +129,61 @@ public class MiscTools {
     public static DocumentModel addToCroppedPictures(CoreSession inSession,
             String inTitle, Blob inPicture) {
 
+        DocumentModel result = createCroppedPictureModel(inSession, inTitle,
+                inPicture);
+        result = createAndSave(inSession, result);
+
+        return result;
+
+    }
+
+    /**
+     * Same as addToCroppedPictures(), but when <code>inComputeViews</code> is
+     * true, the picture views are calculated from the picture we have (see
+     * PictureViewsHelper) instead of letting the platform decode it again.
+     */
+    public static DocumentModel addToCroppedPictures(CoreSession inSession,
+            String inTitle, Blob inPicture, boolean inComputeViews)
+            throws IOException {
+
+        DocumentModel result = createCroppedPictureModel(inSession, inTitle,
+                inPicture);
+        if (inComputeViews) {
+            PictureViewsHelper.setPictureViews(result, inPicture);
+        }
+        result = createAndSave(inSession, result);
+
+        return result;
+
+    }
+
+    /**
+     * Create and save the document prepared by createCroppedPictureModel()
+     */
+    public static DocumentModel createAndSave(CoreSession inSession,
+            DocumentModel inDoc) {
+
+        Timer.Context timer = ImagingMetrics.time(ImagingMetrics.CREATE_DOCUMENT);
+        try {
+            DocumentModel result = inSession.createDocument(inDoc);
+            return inSession.saveDocument(result);
+        } catch (RuntimeException e) {
+            ImagingMetrics.error(ImagingMetrics.CREATE_DOCUMENT);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Prepare (but do not create) the Picture document that will hold
+     * <code>inPicture</code> in the "Cropped Pictures" workspace, so the caller
+     * can set more fields before the document is created (one write instead of
+     * create + update)
+     */
+    public static DocumentModel createCroppedPictureModel(
+            CoreSession inSession, String inTitle, Blob inPicture) {
+
         DocumentModel result = null;
 
         if (inTitle == null || inTitle.isEmpty()) {
@@ -130,32 +195,105 @@ public class MiscTools {
                 croppedPicturesWS.getPathAsString(), inTitle, "Picture");
         result.setPropertyValue("dc:title", inTitle);
         result.setPropertyValue("file:content", (Serializable) inPicture);
-        result = inSession.createDocument(result);
-        result = inSession.saveDocument(result);
 
         return result;
+    }
 
+    /**
+     * Fill picture:info of <code>inTarget</code> with what the pipeline
+     * already knows: the output dimensions and format, and the color space
+     * (the encoding always converts to sRGB). The depth is 8 for JPEG and
+     * WebP, else the depth of <code>inSource</code> (a PNG keeps it). EXIF &
+     * co. (the image_metadata schema) are copied from <code>inSource</code>.
+     * <p>
+     * The image_metadata schema is not copied when <code>inCopyMetadata</code>
+     * is false: the output encoding stripped these values from the binary (see
+     * {@link OutputEncoding#isStrip()}).
+     * <p>
+     * This avoids re-extracting the metadata from the new binary with an
+     * external tool (see the "imageInfo" metadata mapping workaround)
+     */
+    public static void fillPictureInfo(DocumentModel inTarget,
+            DocumentModel inSource, long inWidth, long inHeight,
+            String inMimeType, boolean inCopyMetadata) {
+
+        String format = formatFromMimeType(inMimeType);
+        HashMap<String, Serializable> info = new HashMap<String, Serializable>();
+        info.put("width", inWidth);
+        info.put("height", inHeight);
+        info.put("format", format);
+        info.put("colorSpace", "sRGB");
+        if (format.equals("JPEG") || format.equals("WEBP")) {
+            info.put("depth", 8L);
+        } else if (inSource.hasSchema("picture")) {
+            info.put("depth", inSource.getPropertyValue("picture:info/depth"));
+        }
+        inTarget.setPropertyValue("picture:info", info);
+
+        if (inCopyMetadata && inSource.hasSchema(IMAGE_METADATA_SCHEMA)
+                && inTarget.hasSchema(IMAGE_METADATA_SCHEMA)) {
+            Map<String, Object> metadata = new HashMap<String, Object>(
+                    inSource.getProperties(IMAGE_METADATA_SCHEMA));
+            // Geometry of the source is not the geometry of the output
+            for (String field : IMAGE_METADATA_GEOMETRY_FIELDS) {
+                metadata.remove(field);
+            }
+            inTarget.setProperties(IMAGE_METADATA_SCHEMA, metadata);
+        }
     }
 
-    public static File createWMFileForDocId(CoreSession inSession, String inId)
-            throws IOException {
+    /**
+     * Return the ImageMagick-like format name ("JPEG", "PNG", ...) for the
+     * mime type
+     */
+    public static String formatFromMimeType(String inMimeType) {
 
-        File wmFile;
+        if (inMimeType == null || inMimeType.isEmpty()) {
+            return "";
+        }
 
-        DocumentModel watermarkDoc = inSession.getDocument(new IdRef(inId));
-        Blob watermark = (Blob) watermarkDoc.getPropertyValue("file:content");
-        String suffix = watermark.getFilename();
-        int pos = suffix.lastIndexOf(".");
-        if (pos > 0) {
-            suffix = suffix.substring(pos);
-        } else {
-            suffix = "";
+        String format = inMimeType;
+        int pos = format.indexOf("/");
+        if (pos > -1) {
+            format = format.substring(pos + 1);
+        }
+        if (format.startsWith("x-")) {
+            format = format.substring(2);
         }
-        wmFile = File.createTempFile("TempWatermark-", suffix);
-        watermark.transferTo(wmFile);
-        wmFile.deleteOnExit();
 
-        return wmFile;
+        return format.toUpperCase();
+    }
+
+    /**
+     * Return the blob of the smallest picture view of <code>inDoc</code> that
+     * is at least <code>inMinWidth</code> x <code>inMinHeight</code>, null if
+     * there is none (caller should then use the original file)
+     * <p>
+     * Views keep the aspect ratio of the original, so resizing a view gives
+     * the same result as resizing the original.
+     */
+    public static Blob getSmallestViewBlob(DocumentModel inDoc,
+            int inMinWidth, int inMinHeight) {
+
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp == null) {
+            return null;
+        }
+
+        PictureView best = null;
+        for (PictureView view : mvp.getViews()) {
+            if (view.getWidth() >= inMinWidth
+                    && view.getHeight() >= inMinHeight
+                    && view.getBlob() != null) {
+                if (best == null
+                        || (long) view.getWidth() * view.getHeight() < (long) best.getWidth()
+                                * best.getHeight()) {
+                    best = view;
+                }
+            }
+        }
+
+        return best == null ? null : best.getBlob();
     }
 
     public static Blob crop(CoreSession session, AutomationService as,
@@ -178,7 +316,7 @@ public class MiscTools {
                 "targetFileName", targetFileName).set("targetFileNameSuffix",
                 targetFileNameSuffix);
 
-        result = (Blob) as.run(ctx, chain);
+        result = runTimed(as, ctx, chain, ImagingMetrics.CROP);
 
         return result;
     }
@@ -195,33 +333,84 @@ public class MiscTools {
 
     }
 
+    /**
+     * Watermark and encode the result in the same ImageMagick call. The file
+     * name (so the format) of the result is
+     * <code>inEncoding.getFileName(targetFileName)</code>
+     */
     public static Blob watermark(CoreSession session, AutomationService as,
             Blob inPict, String targetFileName, String watermarkFilePath,
-            String gravity) throws OperationException {
-
-        Blob result = null;
-        OperationChain chain;
+            String gravity, OutputEncoding inEncoding)
+            throws OperationException {
 
         OperationContext ctx = new OperationContext(session);
         ctx.setInput(inPict);
 
         counter += 1;
-        chain = new OperationChain("Chain_Watermark_" + counter);
+        OperationChain chain = new OperationChain("Chain_WatermarkEncode_"
+                + counter);
 
-     // Parameters for Blob.RunConverter
-        Properties props = new Properties();
-        props = new Properties();
-        props.put("targetFileName", targetFileName);
+        // Parameters for Blob.RunConverter
+        Properties props = getEncodingParameters(targetFileName, inEncoding);
         props.put("watermarkFilePath", watermarkFilePath);
         props.put("gravity", gravity);
-        
+
         chain.add("Blob.RunConverter").set("converter",
-                "skyscannerWatermarkWithImage").set("parameters", props);
-        
-        result = (Blob) as.run(ctx, chain);
-        
-        return result;
-        
+                "skyscannerWatermarkAndEncode").set("parameters", props);
+
+        return runTimed(as, ctx, chain, ImagingMetrics.WATERMARK);
+    }
+
+    /**
+     * Encode <code>inPict</code> (no watermark). The file name (so the
+     * format) of the result is <code>inEncoding.getFileName(targetFileName)</code>
+     */
+    public static Blob encode(CoreSession session, AutomationService as,
+            Blob inPict, String targetFileName, OutputEncoding inEncoding)
+            throws OperationException {
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(inPict);
+
+        counter += 1;
+        OperationChain chain = new OperationChain("Chain_Encode_" + counter);
+
+        chain.add("Blob.RunConverter").set("converter", "skyscannerEncode").set(
+                "parameters", getEncodingParameters(targetFileName, inEncoding));
+
+        return runTimed(as, ctx, chain, ImagingMetrics.ENCODE);
+    }
+
+    // Parameters of the converters applying an OutputEncoding
+    protected static Properties getEncodingParameters(String targetFileName,
+            OutputEncoding inEncoding) {
+
+        Properties props = new Properties();
+        props.put("targetFileName", inEncoding.getFileName(targetFileName));
+        props.put("background", inEncoding.getBackground(targetFileName));
+        props.put("alphaMode", inEncoding.getAlphaMode(targetFileName));
+        props.put("stripProfiles", inEncoding.getStripProfiles());
+        props.put("quality", inEncoding.getQuality(targetFileName));
+        props.put("interlace", inEncoding.getInterlace(targetFileName));
+        props.put("samplingFactor", inEncoding.getSamplingFactor());
+        return props;
+    }
+
+    /**
+     * Run the chain, updating the timer and error counter of the stage
+     */
+    public static Blob runTimed(AutomationService as, OperationContext ctx,
+            OperationChain chain, String inStage) throws OperationException {
+
+        Timer.Context timer = ImagingMetrics.time(inStage);
+        try {
+            return (Blob) as.run(ctx, chain);
+        } catch (OperationException | RuntimeException e) {
+            ImagingMetrics.error(inStage);
+            throw e;
+        } finally {
+            timer.stop();
+        }
     }
 
 }
@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.util.Arrays;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Encoding of the pictures we produce, per profile ("1200x1200", "1200x627",
+ * "468x283" for the batch, "crop" for the crop operation, "web" for the
+ * /nxcrop URL).
+ * <p>
+ * Read from the configuration (nuxeo.conf), with fallback to the "default"
+ * profile, then to the values below:
+ *
+ * <pre>
+ * skyscanner.output.&lt;profile&gt;.format=jpeg      (jpeg, webp, png or source, other values fail)
+ * skyscanner.output.&lt;profile&gt;.quality=85
+ * skyscanner.output.&lt;profile&gt;.progressive=true  (JPEG only)
+ * skyscanner.output.&lt;profile&gt;.samplingFactor=4:2:0
+ * skyscanner.output.&lt;profile&gt;.strip=true      (remove EXIF, IPTC, ICC, ... profiles)
+ * </pre>
+ *
+ * Applied by the "skyscannerWatermarkAndEncode" converter, in the same
+ * ImageMagick call as the watermark (or by "skyscannerEncode" when there is no
+ * watermark). Huffman tables are always optimized, the
+ * result is always sRGB, and transparency is flattened on white when the
+ * format has no alpha channel.
+ *
+ * @since 7.1
+ */
+public class OutputEncoding {
+
+    public static final String PROPERTY_PREFIX = "skyscanner.output.";
+
+    public static final String DEFAULT_PROFILE = "default";
+
+    public static final String CROP_PROFILE = "crop";
+
+    public static final String FORMAT_SOURCE = "source";
+
+    public static final String[] FORMATS = { "jpeg", "webp", "png",
+            FORMAT_SOURCE };
+
+    // PNG: max zlib compression, adaptive filtering
+    protected static final String PNG_QUALITY = "95";
+
+    // Extensions of the formats with an alpha channel
+    protected static final String[] ALPHA_EXTENSIONS = { ".png", ".webp",
+            ".gif", ".tif", ".tiff" };
+
+    protected String format = "jpeg";
+
+    protected int quality = 85;
+
+    protected boolean progressive = true;
+
+    protected String samplingFactor = "4:2:0";
+
+    protected boolean strip = true;
+
+    public static OutputEncoding forProfile(String inProfile) {
+
+        OutputEncoding encoding = new OutputEncoding();
+        encoding.format = getProperty(inProfile, "format", encoding.format).toLowerCase();
+        if (encoding.format.equals("jpg")) {
+            encoding.format = "jpeg";
+        }
+        if (!Arrays.asList(FORMATS).contains(encoding.format)) {
+            throw new ClientException("Unknown output format '"
+                    + encoding.format + "' for the profile " + inProfile
+                    + " (" + PROPERTY_PREFIX + inProfile + ".format), expected one of "
+                    + Arrays.toString(FORMATS));
+        }
+        encoding.quality = Integer.parseInt(getProperty(inProfile, "quality",
+                "" + encoding.quality));
+        encoding.progressive = Boolean.parseBoolean(getProperty(inProfile,
+                "progressive", "" + encoding.progressive));
+        encoding.samplingFactor = getProperty(inProfile, "samplingFactor",
+                encoding.samplingFactor);
+        encoding.strip = Boolean.parseBoolean(getProperty(inProfile, "strip",
+                "" + encoding.strip));
+
+        return encoding;
+    }
+
+    protected static String getProperty(String inProfile, String inKey,
+            String inDefault) {
+
+        String value = Framework.getProperty(PROPERTY_PREFIX + inProfile + "."
+                + inKey);
+        if (value == null || value.isEmpty()) {
+            value = Framework.getProperty(PROPERTY_PREFIX + DEFAULT_PROFILE
+                    + "." + inKey, inDefault);
+        }
+
+        return value;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Mime type of the result, <code>inSourceMimeType</code> if the format is
+     * "source"
+     */
+    public String getMimeType(String inSourceMimeType) {
+        if (FORMAT_SOURCE.equals(format)) {
+            return inSourceMimeType;
+        }
+        return "image/" + format;
+    }
+
+    /**
+     * Change the extension of the file name to the format. ImageMagick uses
+     * the extension of the target file to choose the format.
+     */
+    public String getFileName(String inFileName) {
+
+        if (FORMAT_SOURCE.equals(format)) {
+            return inFileName;
+        }
+
+        String ext = format.equals("jpeg") ? ".jpg" : "." + format;
+        int pos = inFileName.lastIndexOf(".");
+        if (pos > 0) {
+            return inFileName.substring(0, pos) + ext;
+        }
+        return inFileName + ext;
+    }
+
+    /**
+     * The quality option for the result (see {@link #getFileName(String)}):
+     * for a PNG, it is the zlib level and filter, not a quality
+     */
+    public String getQuality(String inFileName) {
+        if (isOutput(inFileName, ".png")) {
+            return PNG_QUALITY;
+        }
+        return "" + quality;
+    }
+
+    /**
+     * Progressive only applies to JPEG: an interlaced (Adam7) PNG is bigger
+     */
+    public String getInterlace(String inFileName) {
+        return progressive && isOutput(inFileName, ".jpg", ".jpeg") ? "Plane"
+                : "None";
+    }
+
+    // True if the result (see getFileName()) has one of the extensions
+    protected boolean isOutput(String inFileName, String... inExtensions) {
+
+        String name = getFileName(inFileName).toLowerCase();
+        for (String ext : inExtensions) {
+            if (name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if EXIF, IPTC, ... are removed from the pictures
+     */
+    public boolean isStrip() {
+        return strip;
+    }
+
+    public String getSamplingFactor() {
+        return samplingFactor;
+    }
+
+    /**
+     * True if the format of the result (see {@link #getFileName(String)})
+     * has an alpha channel
+     */
+    public boolean hasAlpha(String inFileName) {
+
+        return isOutput(inFileName, ALPHA_EXTENSIONS);
+    }
+
+    /*
+     * Used with -alpha: "remove" flattens on the background (white), else
+     * "Background" only changes the color of the fully transparent pixels, and
+     * does not add an alpha channel to an opaque picture
+     */
+    public String getAlphaMode(String inFileName) {
+        return hasAlpha(inFileName) ? "Background" : "remove";
+    }
+
+    public String getBackground(String inFileName) {
+        return hasAlpha(inFileName) ? "none" : "white";
+    }
+
+    /**
+     * All the values, for caches of encoded pictures
+     */
+    public String getCacheKey() {
+        return format + "-" + quality + "-" + progressive + "-"
+                + samplingFactor + "-" + strip;
+    }
+
+    /*
+     * Used with +profile: "*" removes all the profiles, a name that does not
+     * exist removes nothing
+     */
+    public String getStripProfiles() {
+        return strip ? "*" : "none";
+    }
+
+}
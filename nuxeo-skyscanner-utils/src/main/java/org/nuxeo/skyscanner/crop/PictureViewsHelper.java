@@ -0,0 +1,372 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Build the standard picture views (Thumbnail, Small, Medium, Original,
+ * OriginalJpeg) of a picture we just produced, decoding it only once and
+ * scaling each view from the previous (bigger) one.
+ * <p>
+ * The views and picture:info (width, height, format, color space, depth) are
+ * set on the document before it is created, and the document is
+ * flagged so the default views generation does not run again (and does not
+ * decode the picture again, several times)
+ * <p>
+ * Sizes are the default ones of the platform (see images-service-contrib.xml)
+ * <p>
+ * Memory: a JPEG bigger than {@link PixelBufferPool#MAX_SIZE} is subsampled
+ * while decoded (we never need more than twice the Medium view), into a
+ * buffer of the PixelBufferPool, so the heap used does not depend on the size
+ * of the picture. Other formats bigger than that are left to the platform,
+ * since the OriginalJpeg view must then be built at full size.
+ *
+ * @since 7.1
+ */
+public class PictureViewsHelper {
+
+    private static final Log log = LogFactory.getLog(PictureViewsHelper.class);
+
+    public static final String DISABLE_VIEWS_GENERATION_LISTENER = "disablePictureViewsGenerationListener";
+
+    public static final String VIEWS_PROPERTY = "picture:views";
+
+    public static final String INFO_PROPERTY = "picture:info";
+
+    protected static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    // Title, tag, description, max size. From the biggest to the smallest.
+    protected static final String[][] SCALED_VIEWS = {
+            { "Medium", "medium", "Medium Size", "1200" },
+            { "Small", "small", "Small Size", "280" },
+            { "Thumbnail", "thumbnail", "Thumbnail Size", "100" } };
+
+    /**
+     * Decode <code>inPicture</code> once and set the picture views of
+     * <code>inDoc</code>.
+     *
+     * @return false if the picture could not be decoded in-process, whatever
+     *         the reason (the platform will then generate the views as
+     *         usual)
+     */
+    public static boolean setPictureViews(DocumentModel inDoc, Blob inPicture) {
+
+        Timer.Context timer = ImagingMetrics.time(ImagingMetrics.PICTURE_VIEWS);
+        try {
+            return doSetPictureViews(inDoc, inPicture);
+        } catch (IOException | RuntimeException e) {
+            // The views are only an optimization: never fail the caller
+            ImagingMetrics.error(ImagingMetrics.PICTURE_VIEWS);
+            log.warn("Cannot build the views of " + inPicture.getFilename()
+                    + ", picture views will be calculated by the platform", e);
+            return false;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    protected static boolean doSetPictureViews(DocumentModel inDoc,
+            Blob inPicture) throws IOException {
+
+        PixelBufferPool pool = PixelBufferPool.getInstance();
+        BufferedImage pooled = null;
+        InputStream in = inPicture.getStream();
+        ImageInputStream iis = null;
+        ImageReader reader = null;
+        try {
+            iis = ImageIO.createImageInputStream(in);
+            Iterator<ImageReader> readers = iis == null ? null
+                    : ImageIO.getImageReaders(iis);
+            if (readers == null || !readers.hasNext()) {
+                log.warn("Cannot decode " + inPicture.getFilename()
+                        + ", picture views will be calculated by the platform");
+                return false;
+            }
+            reader = readers.next();
+            reader.setInput(iis, true, true);
+            boolean isJpeg = "jpeg".equalsIgnoreCase(reader.getFormatName());
+            // The OriginalJpeg view is then the picture itself
+            boolean canSubsample = isJpeg
+                    && JPEG_MIME_TYPE.equals(inPicture.getMimeType());
+
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            int subsampling = 1;
+            int maxSize = Math.max(width, height);
+            if (maxSize > PixelBufferPool.MAX_SIZE) {
+                if (!canSubsample) {
+                    log.info(inPicture.getFilename() + " is too big ("
+                            + width + "x" + height
+                            + "), picture views will be calculated by the platform");
+                    return false;
+                }
+                subsampling = (maxSize + PixelBufferPool.MAX_SIZE - 1)
+                        / PixelBufferPool.MAX_SIZE;
+            }
+            int decodedWidth = (width + subsampling - 1) / subsampling;
+            int decodedHeight = (height + subsampling - 1) / subsampling;
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            // The JPEG reader converts to RGB, other readers may not. When the
+            // pool has no buffer, the reader allocates the picture
+            if (isJpeg) {
+                pooled = pool.acquire(decodedWidth, decodedHeight);
+                if (pooled != null) {
+                    param.setDestination(pooled);
+                }
+            }
+            // Before the read, which may convert to RGB
+            HashMap<String, Serializable> info = getPictureInfo(reader,
+                    width, height);
+            BufferedImage image = reader.read(0, param);
+            if (image == pooled) {
+                image = pooled.getSubimage(0, 0, decodedWidth, decodedHeight);
+            }
+
+            return buildViews(inDoc, inPicture, image, width, height, info);
+
+        } finally {
+            pool.release(pooled);
+            if (reader != null) {
+                reader.dispose();
+            }
+            if (iis != null) {
+                iis.close();
+            }
+            in.close();
+        }
+    }
+
+    /*
+     * picture:info of the decoded file, with the names ImageMagick uses (the
+     * platform fills it with ImageMagick, in the listener we disable)
+     */
+    protected static HashMap<String, Serializable> getPictureInfo(
+            ImageReader inReader, int inWidth, int inHeight)
+            throws IOException {
+
+        String colorSpace = "sRGB";
+        int depth = 8;
+        ImageTypeSpecifier rawType = inReader.getRawImageType(0);
+        if (rawType != null) {
+            ColorModel cm = rawType.getColorModel();
+            switch (cm.getColorSpace().getType()) {
+            case ColorSpace.TYPE_GRAY:
+                colorSpace = "Gray";
+                break;
+            case ColorSpace.TYPE_CMYK:
+                colorSpace = "CMYK";
+                break;
+            default:
+                break;
+            }
+            depth = cm.getComponentSize(0);
+        }
+
+        HashMap<String, Serializable> info = new HashMap<String, Serializable>();
+        info.put("width", (long) inWidth);
+        info.put("height", (long) inHeight);
+        info.put("format", inReader.getFormatName().toUpperCase());
+        info.put("colorSpace", colorSpace);
+        info.put("depth", (long) depth);
+
+        return info;
+    }
+
+    /*
+     * inImage may be subsampled, inWidth/inHeight are the real dimensions.
+     * inInfo is merged into picture:info
+     */
+    protected static boolean buildViews(DocumentModel inDoc, Blob inPicture,
+            BufferedImage inImage, int inWidth, int inHeight,
+            HashMap<String, Serializable> inInfo) throws IOException {
+
+        String fileName = inPicture.getFilename();
+        // Views other than Original are JPEG
+        String jpegFileName = toJpegFileName(fileName);
+        ArrayList<HashMap<String, Serializable>> views = new ArrayList<HashMap<String, Serializable>>();
+
+        views.add(buildView("Original", "original", "Original Size",
+                fileName, inWidth, inHeight, inPicture));
+
+        BufferedImage current = toRGB(inImage);
+        Blob originalJpeg;
+        if (JPEG_MIME_TYPE.equals(inPicture.getMimeType())) {
+            originalJpeg = inPicture;
+        } else {
+            // Not subsampled (see doSetPictureViews)
+            originalJpeg = toJpegBlob(current, "OriginalJpeg_" + jpegFileName);
+        }
+        views.add(buildView("OriginalJpeg", "originalJpeg",
+                "Original jpeg image", jpegFileName, inWidth, inHeight,
+                originalJpeg));
+
+        for (String[] oneView : SCALED_VIEWS) {
+            int maxSize = Integer.parseInt(oneView[3]);
+            current = scaleToFit(current, maxSize);
+            views.add(buildView(oneView[0], oneView[1], oneView[2],
+                    jpegFileName, current.getWidth(), current.getHeight(),
+                    toJpegBlob(current, oneView[0] + "_" + jpegFileName)));
+        }
+
+        // Keep what the caller already set (see MiscTools.fillPictureInfo)
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> info = (Map<String, Serializable>) inDoc.getPropertyValue(INFO_PROPERTY);
+        HashMap<String, Serializable> newInfo = new HashMap<String, Serializable>();
+        if (info != null) {
+            newInfo.putAll(info);
+        }
+        newInfo.putAll(inInfo);
+
+        inDoc.setPropertyValue(VIEWS_PROPERTY, views);
+        inDoc.setPropertyValue(INFO_PROPERTY, newInfo);
+        inDoc.putContextData(DISABLE_VIEWS_GENERATION_LISTENER, Boolean.TRUE);
+
+        return true;
+    }
+
+    protected static HashMap<String, Serializable> buildView(String inTitle,
+            String inTag, String inDescription, String inFileName,
+            int inWidth, int inHeight, Blob inContent) {
+
+        String viewFileName = inTitle + "_" + inFileName;
+
+        HashMap<String, Serializable> view = new HashMap<String, Serializable>();
+        view.put("title", inTitle);
+        view.put("tag", inTag);
+        view.put("description", inDescription);
+        view.put("filename", viewFileName);
+        view.put("width", inWidth);
+        view.put("height", inHeight);
+        view.put("content", (Serializable) inContent);
+
+        return view;
+    }
+
+    /*
+     * JPEG has no alpha, and the JPEG writer does not like ARGB images. Also,
+     * drawing in a TYPE_INT_RGB makes the scaling faster.
+     */
+    protected static BufferedImage toRGB(BufferedImage inImage) {
+
+        if (inImage.getType() == BufferedImage.TYPE_INT_RGB) {
+            return inImage;
+        }
+
+        BufferedImage rgb = new BufferedImage(inImage.getWidth(),
+                inImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.drawImage(inImage, 0, 0, Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+
+        return rgb;
+    }
+
+    /*
+     * Scale down by steps of 2 at most, so bilinear interpolation stays good
+     * looking. Does not scale up.
+     */
+    protected static BufferedImage scaleToFit(BufferedImage inImage,
+            int inMaxSize) {
+
+        int w = inImage.getWidth();
+        int h = inImage.getHeight();
+        if (w <= inMaxSize && h <= inMaxSize) {
+            return inImage;
+        }
+
+        double ratio = Math.min((double) inMaxSize / w, (double) inMaxSize / h);
+        int targetW = Math.max(1, (int) Math.round(w * ratio));
+        int targetH = Math.max(1, (int) Math.round(h * ratio));
+
+        BufferedImage result = inImage;
+        do {
+            w = Math.max(targetW, w / 2);
+            h = Math.max(targetH, h / 2);
+
+            BufferedImage step = new BufferedImage(w, h,
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(result, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            result = step;
+        } while (w != targetW || h != targetH);
+
+        return result;
+    }
+
+    protected static String toJpegFileName(String inFileName) {
+
+        int pos = inFileName.lastIndexOf(".");
+        if (pos > 0) {
+            return inFileName.substring(0, pos) + ".jpg";
+        }
+        return inFileName + ".jpg";
+    }
+
+    protected static Blob toJpegBlob(BufferedImage inImage, String inFileName)
+            throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(inImage, "jpg", out)) {
+            throw new IOException("No JPEG writer available");
+        }
+
+        Blob result = new ByteArrayBlob(out.toByteArray(), JPEG_MIME_TYPE);
+        result.setFilename(inFileName);
+
+        return result;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Pool of pixel buffers (TYPE_INT_RGB images) used to decode pictures in the
+ * JVM. A 2400x2400 raster is a 23 MB array, allocated directly in the old
+ * generation (a "humongous" object for G1): allocating one per picture means
+ * long GC pauses when several pictures are processed at the same time. Pooled
+ * buffers are allocated once and reused.
+ * <p>
+ * <ul>
+ * <li>Buffers are square, in 3 size classes (600, 1200 and 2400 pixels). A
+ * picture uses the smallest class it fits in</li>
+ * <li>The total size is limited (skyscanner.imaging.pixelPoolMB, default 128).
+ * When it is reached, unused buffers of other classes are freed, else the
+ * caller waits a little (skyscanner.imaging.pixelPoolWaitMillis, default 500:
+ * it holds an ImagingScheduler slot), then gets no buffer and decodes in a
+ * picture of its own</li>
+ * </ul>
+ * A picture bigger than the biggest class must be subsampled while decoded
+ * (see PictureViewsHelper).
+ *
+ * @since 7.1
+ */
+public class PixelBufferPool {
+
+    private static final Log log = LogFactory.getLog(PixelBufferPool.class);
+
+    public static final String MAX_MB_PROPERTY = "skyscanner.imaging.pixelPoolMB";
+
+    public static final String WAIT_MILLIS_PROPERTY = "skyscanner.imaging.pixelPoolWaitMillis";
+
+    public static final int[] SIZE_CLASSES = { 600, 1200, 2400 };
+
+    public static final int MAX_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+    private static PixelBufferPool instance = null;
+
+    protected final long maxBytes;
+
+    protected final long waitMillis;
+
+    protected long allocatedBytes = 0;
+
+    protected long inUseBytes = 0;
+
+    @SuppressWarnings("unchecked")
+    protected final ArrayDeque<BufferedImage>[] free = new ArrayDeque[SIZE_CLASSES.length];
+
+    public static synchronized PixelBufferPool getInstance() {
+        if (instance == null) {
+            instance = new PixelBufferPool();
+        }
+        return instance;
+    }
+
+    protected PixelBufferPool() {
+
+        maxBytes = Long.parseLong(Framework.getProperty(MAX_MB_PROPERTY, "128")) * 1024 * 1024;
+        waitMillis = Long.parseLong(Framework.getProperty(
+                WAIT_MILLIS_PROPERTY, "500"));
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            free[i] = new ArrayDeque<BufferedImage>();
+        }
+
+        if (maxBytes < getBytes(MAX_SIZE)) {
+            log.warn(MAX_MB_PROPERTY + " is too small for " + MAX_SIZE + "x"
+                    + MAX_SIZE + " buffers, big pictures will not be pooled");
+        }
+
+        ImagingMetrics.registerGauge("pixelPool.allocated", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return allocatedBytes;
+            }
+        });
+        ImagingMetrics.registerGauge("pixelPool.inUse", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return inUseBytes;
+            }
+        });
+    }
+
+    protected static long getBytes(int inSize) {
+        return (long) inSize * inSize * 4;
+    }
+
+    protected static int getSizeClass(int inWidth, int inHeight) {
+
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (inWidth <= SIZE_CLASSES[i] && inHeight <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get a buffer of at least <code>inWidth</code> x <code>inHeight</code>
+     * pixels. Its content is undefined. It must be released (in a finally
+     * block).
+     *
+     * @return null if the size is bigger than {@link #MAX_SIZE}, or than the
+     *         pool, or if no buffer was released in time: the caller must
+     *         then use a buffer of its own
+     */
+    public synchronized BufferedImage acquire(int inWidth, int inHeight)
+            throws IOException {
+
+        int sizeClass = getSizeClass(inWidth, inHeight);
+        if (sizeClass < 0) {
+            return null;
+        }
+        int size = SIZE_CLASSES[sizeClass];
+        long bytes = getBytes(size);
+        if (bytes > maxBytes) {
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (free[sizeClass].isEmpty() && allocatedBytes + bytes > maxBytes) {
+            if (freeOneBuffer()) {
+                continue;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                log.debug("Pixel buffer pool full, no " + size + "x" + size
+                        + " buffer after " + waitMillis + " ms");
+                return null;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        BufferedImage image = free[sizeClass].poll();
+        if (image == null) {
+            image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            allocatedBytes += bytes;
+        }
+        inUseBytes += bytes;
+
+        return image;
+    }
+
+    public synchronized void release(BufferedImage inImage) {
+
+        if (inImage == null) {
+            return;
+        }
+
+        int sizeClass = getSizeClass(inImage.getWidth(), inImage.getHeight());
+        inUseBytes -= getBytes(SIZE_CLASSES[sizeClass]);
+        free[sizeClass].push(inImage);
+        notifyAll();
+    }
+
+    // Must be called with the lock held
+    protected boolean freeOneBuffer() {
+
+        // Biggest first
+        for (int i = SIZE_CLASSES.length - 1; i >= 0; i--) {
+            if (free[i].poll() != null) {
+                allocatedBytes -= getBytes(SIZE_CLASSES[i]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
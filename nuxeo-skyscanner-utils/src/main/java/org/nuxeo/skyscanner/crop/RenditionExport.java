@@ -0,0 +1,216 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Writes the pictures produced by a batch to a ZIP file (path ending with
+ * ".zip") or to a directory, one at a time, as they are produced: nothing is
+ * kept in memory.
+ * <p>
+ * The ZIP is written to a ".part" file, renamed when the export is complete.
+ * An existing ZIP is never replaced: the name gets a suffix ("-1", "-2", ...)
+ * when the ZIP, or the ".part" of another export, already exists (the ".part"
+ * file is created exclusively).
+ * Entries are deflated at level 0 (JPEG, WebP, ... are already compressed):
+ * no time is spent compressing, the data is copied as is. In a directory,
+ * existing files are never overwritten: a suffix is added to the name
+ * ("-1", "-2", ...), as for two pictures with the same name.
+ *
+ * @since 7.1
+ */
+public class RenditionExport {
+
+    private static final Log log = LogFactory.getLog(RenditionExport.class);
+
+    protected static final String PART_SUFFIX = ".part";
+
+    protected File target;
+
+    protected File zipPartFile = null;
+
+    protected ZipOutputStream zip = null;
+
+    // Two documents can have the same file name
+    protected Set<String> names = new HashSet<String>();
+
+    protected boolean closed = false;
+
+    public RenditionExport(String inPath) throws IOException {
+
+        target = new File(inPath);
+        if (inPath.toLowerCase().endsWith(".zip")) {
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            zip = new ZipOutputStream(new BufferedOutputStream(
+                    createPartFile(inPath)));
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            if (!target.getPath().equals(inPath)) {
+                log.info(inPath + " exists or is being written, exporting to "
+                        + target.getAbsolutePath());
+            }
+        } else {
+            target.mkdirs();
+            if (!target.isDirectory()) {
+                throw new IOException("Cannot create the directory "
+                        + target.getAbsolutePath());
+            }
+        }
+    }
+
+    /*
+     * Sets target and zipPartFile to the first free name: path.zip,
+     * path-1.zip, ...
+     */
+    protected OutputStream createPartFile(String inPath)
+            throws IOException {
+
+        String base = inPath.substring(0, inPath.length() - ".zip".length());
+        String ext = inPath.substring(base.length());
+        int i = 1;
+        while (true) {
+            if (!target.exists()) {
+                zipPartFile = new File(target.getAbsolutePath() + PART_SUFFIX);
+                try {
+                    return Files.newOutputStream(zipPartFile.toPath(),
+                            StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    // Another export to the same path is running
+                }
+            }
+            target = new File(base + "-" + i + ext);
+            i += 1;
+        }
+    }
+
+    public void add(Blob inBlob) throws IOException {
+
+        String name = getUniqueName(inBlob.getFilename());
+        if (zip != null) {
+            zip.putNextEntry(new ZipEntry(name));
+            InputStream in = inBlob.getStream();
+            try {
+                FileUtils.copy(in, zip);
+            } finally {
+                in.close();
+            }
+            zip.closeEntry();
+        } else {
+            inBlob.transferTo(new File(target, name));
+        }
+    }
+
+    protected String getUniqueName(String inFileName) {
+
+        String name = new File(inFileName).getName();
+        if (isFree(name)) {
+            return name;
+        }
+
+        String base = name;
+        String ext = "";
+        int pos = name.lastIndexOf(".");
+        if (pos > 0) {
+            base = name.substring(0, pos);
+            ext = name.substring(pos);
+        }
+        int i = 1;
+        do {
+            name = base + "-" + i + ext;
+            i += 1;
+        } while (!isFree(name));
+
+        return name;
+    }
+
+    // Reserves the name if it is free
+    protected boolean isFree(String inName) {
+
+        if (zip == null && new File(target, inName).exists()) {
+            return false;
+        }
+        return names.add(inName);
+    }
+
+    /**
+     * Complete the export. After an error, call {@link #abort()} instead
+     */
+    public void close() throws IOException {
+
+        if (closed) {
+            return;
+        }
+
+        if (zip != null) {
+            zip.close();
+            // Fails if the target was created meanwhile: never replace it.
+            // Not closed then: abort() removes the ".part" file
+            Files.move(zipPartFile.toPath(), target.toPath());
+        }
+        closed = true;
+    }
+
+    /**
+     * Remove the incomplete ZIP. Files already written in a directory are
+     * kept.
+     */
+    public void abort() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (zip != null) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // Ignore, the file is deleted anyway
+            }
+            zipPartFile.delete();
+        }
+    }
+
+    /**
+     * The ZIP file (may have a suffix, see the class comment) or the directory
+     */
+    public File getTarget() {
+        return target;
+    }
+
+}
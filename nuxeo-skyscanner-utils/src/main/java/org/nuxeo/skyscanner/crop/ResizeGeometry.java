@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+/**
+ * Resize/crop geometry of the batch: the picture is first resized so its
+ * smallest side (or its width, for the 1200x627 and 468x283 profiles) is 1200,
+ * then cropped to the target size, centered.
+ * <p>
+ * No dependency on the repository, so it can also be used by the benchmarks.
+ *
+ * @since 7.1
+ */
+public class ResizeGeometry {
+
+    public static final int TARGET_SIZE = 1200;
+
+    public final int targetWidth;
+
+    public final int targetHeight;
+
+    public int widthFor1200 = 0;
+
+    public int heightFor1200 = 0;
+
+    public int cropTop = 0;
+
+    public int cropLeft = 0;
+
+    protected ResizeGeometry(int inTargetWidth, int inTargetHeight) {
+        targetWidth = inTargetWidth;
+        targetHeight = inTargetHeight;
+    }
+
+    /**
+     * Return the dimensions for a size profile ("1200x1200", "1200x627",
+     * "468x283"), {0, 0} if the profile is unknown
+     */
+    public static int[] getProfileSize(String inSize) {
+
+        if (inSize.equals("1200x1200")) {
+            return new int[] { 1200, 1200 };
+        } else if (inSize.equals("1200x627")) {
+            return new int[] { 1200, 627 };
+        } else if (inSize.equals("468x283")) {
+            return new int[] { 468, 283 };
+        }
+
+        return new int[] { 0, 0 };
+    }
+
+    public static ResizeGeometry compute(int origWidth, int origHeight,
+            int newWidth, int newHeight) {
+
+        ResizeGeometry g = new ResizeGeometry(newWidth, newHeight);
+        double ratio = 1.0;
+        int diff = 0;
+
+        // ========================================
+        if (newHeight == TARGET_SIZE) {
+            // ========================================
+
+            if (origWidth <= origHeight) {
+                g.widthFor1200 = TARGET_SIZE;
+                diff = origWidth - TARGET_SIZE;
+                ratio = 1 - ((double) diff / (double) origWidth);
+                g.heightFor1200 = (int) ((double) origHeight * ratio);
+            } else {
+                g.heightFor1200 = TARGET_SIZE;
+                diff = origHeight - TARGET_SIZE;
+                ratio = 1 - ((double) diff / (double) origHeight);
+                g.widthFor1200 = (int) ((double) origWidth * ratio);
+            }
+
+            // Crop must center the picture, at 0 for top.
+            if (g.widthFor1200 > TARGET_SIZE) {
+                g.cropLeft = (g.widthFor1200 - TARGET_SIZE) / 2;
+            }
+            if (g.heightFor1200 > TARGET_SIZE) {
+                g.cropTop = (g.heightFor1200 - TARGET_SIZE) / 2;
+            } else if (newHeight < g.heightFor1200) {
+                g.cropTop = (g.heightFor1200 - newHeight) / 2;
+            }
+            // ========================================
+        } else {
+            // ========================================
+            // Assume 627
+            // Resize with target width of 1200
+            g.widthFor1200 = TARGET_SIZE;
+            diff = origWidth - TARGET_SIZE;
+            ratio = 1 - ((double) diff / (double) origWidth);
+            g.heightFor1200 = (int) ((double) origHeight * ratio);
+            g.cropTop = (g.heightFor1200 - newHeight) / 2;
+        }
+
+        return g;
+    }
+
+    /**
+     * True if the resized picture is bigger than the target, so the crop
+     * position matters
+     */
+    public boolean canMoveCrop() {
+        return widthFor1200 > targetWidth || heightFor1200 > targetHeight;
+    }
+
+    /**
+     * Move the crop to <code>inWindow</code> ({left, top} as fractions of the
+     * resized picture, see SmartCropHelper), keeping it inside the picture
+     */
+    public void moveCrop(double[] inWindow) {
+
+        cropLeft = Math.max(0, Math.min(widthFor1200 - targetWidth,
+                (int) Math.round(inWindow[0] * widthFor1200)));
+        cropTop = Math.max(0, Math.min(heightFor1200 - targetHeight,
+                (int) Math.round(inWindow[1] * heightFor1200)));
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Watermark files of the imaging pipeline (instead of File.createTempFile() +
+ * deleteOnExit(), which keeps the files on disk and their names in memory until
+ * the JVM stops). The intermediate pictures are not here: they are created and
+ * deleted by the converters.
+ * <p>
+ * <ul>
+ * <li>All files are in one directory: skyscanner.scratch.dir in nuxeo.conf,
+ * default is /dev/shm (tmpfs) when available, else the temp. directory. Each
+ * Nuxeo instance uses its own subdirectory (from its data directory), emptied
+ * at startup</li>
+ * <li>Watermark files are kept and shared by all jobs, as long as the
+ * watermark document is not modified (and there is space for them). A Job
+ * tells which ones are in use</li>
+ * <li>The total size is limited (skyscanner.scratch.maxMB, default 1024). When
+ * the limit is reached, new files wait for space (at most
+ * skyscanner.scratch.waitSeconds, default 60), then fail</li>
+ * </ul>
+ * Typical usage:
+ *
+ * <pre>
+ * ScratchSpace.Job job = ScratchSpace.getInstance().openJob();
+ * try {
+ *     File wm = job.getWatermarkFile(session, watermarkDocId);
+ *     ...
+ * } finally {
+ *     job.close();
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class ScratchSpace {
+
+    private static final Log log = LogFactory.getLog(ScratchSpace.class);
+
+    public static final String DIR_PROPERTY = "skyscanner.scratch.dir";
+
+    public static final String MAX_MB_PROPERTY = "skyscanner.scratch.maxMB";
+
+    public static final String WAIT_SECONDS_PROPERTY = "skyscanner.scratch.waitSeconds";
+
+    public static final String WATERMARK_CACHE = "watermark";
+
+    protected static final String TMPFS = "/dev/shm";
+
+    protected static final String DIR_NAME = "nuxeo-skyscanner";
+
+    private static ScratchSpace instance = null;
+
+    protected final File watermarksDir;
+
+    protected final long maxBytes;
+
+    protected final long waitMillis;
+
+    protected long usedBytes = 0;
+
+    // Access order: first entry is the least recently used
+    protected final LinkedHashMap<String, CachedFile> watermarks = new LinkedHashMap<String, CachedFile>(
+            16, 0.75f, true);
+
+    protected static class CachedFile {
+
+        File file;
+
+        long size;
+
+        int users = 0;
+    }
+
+    public static synchronized ScratchSpace getInstance() {
+        if (instance == null) {
+            instance = new ScratchSpace();
+        }
+        return instance;
+    }
+
+    protected ScratchSpace() {
+
+        String dirPath = Framework.getProperty(DIR_PROPERTY);
+        File root;
+        if (dirPath != null && !dirPath.isEmpty()) {
+            root = new File(dirPath);
+        } else {
+            File tmpfs = new File(TMPFS);
+            if (tmpfs.isDirectory() && tmpfs.canWrite()) {
+                root = new File(tmpfs, DIR_NAME);
+            } else {
+                root = new File(System.getProperty("java.io.tmpdir"), DIR_NAME);
+            }
+        }
+
+        // Other instances on the same host may use the same root: only
+        // touch our own files
+        root = new File(root, getInstanceName());
+        watermarksDir = new File(root, "watermarks");
+        // Leftovers of a previous run
+        FileUtils.deleteTree(watermarksDir);
+        watermarksDir.mkdirs();
+
+        maxBytes = Long.parseLong(Framework.getProperty(MAX_MB_PROPERTY, "1024")) * 1024 * 1024;
+        waitMillis = Long.parseLong(Framework.getProperty(
+                WAIT_SECONDS_PROPERTY, "60")) * 1000;
+
+        log.info("Scratch space: " + root.getAbsolutePath() + ", max "
+                + (maxBytes / (1024 * 1024)) + " MB");
+    }
+
+    /*
+     * Same for each start of the same instance, different for two instances
+     * (they cannot share their data directory)
+     */
+    protected static String getInstanceName() {
+
+        Environment env = Environment.getDefault();
+        if (env == null || env.getData() == null) {
+            return "default";
+        }
+        return "instance-"
+                + Integer.toHexString(env.getData().getAbsolutePath().hashCode());
+    }
+
+    public Job openJob() {
+        return new Job();
+    }
+
+    /*
+     * Wait until inBytes are available, evicting unused watermarks if needed
+     */
+    protected synchronized void reserve(long inBytes) throws IOException {
+
+        if (inBytes > maxBytes) {
+            throw new IOException("Scratch space too small for " + inBytes
+                    + " bytes (" + MAX_MB_PROPERTY + ")");
+        }
+
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (usedBytes + inBytes > maxBytes) {
+            if (evictOneWatermark()) {
+                continue;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new IOException("Scratch space full, waited "
+                        + waitMillis + " ms for " + inBytes + " bytes");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        usedBytes += inBytes;
+    }
+
+    protected synchronized void release(long inBytes) {
+        usedBytes -= inBytes;
+        notifyAll();
+    }
+
+    // Must be called with the lock held
+    protected boolean evictOneWatermark() {
+
+        Iterator<CachedFile> it = watermarks.values().iterator();
+        while (it.hasNext()) {
+            CachedFile cached = it.next();
+            if (cached.users == 0) {
+                it.remove();
+                cached.file.delete();
+                usedBytes -= cached.size;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The caller must call releaseWatermark() with the returned value
+     */
+    protected CachedFile getWatermarkFile(CoreSession inSession,
+            String inDocId) throws IOException {
+
+        DocumentModel watermarkDoc = inSession.getDocument(new IdRef(inDocId));
+        Blob watermark = (Blob) watermarkDoc.getPropertyValue("file:content");
+        String key = inDocId + "-" + getVersionKey(watermarkDoc, watermark);
+
+        synchronized (this) {
+            CachedFile cached = watermarks.get(key);
+            if (cached != null && !cached.file.exists()) {
+                // Removed by a tmp cleaner: write it again. Jobs using it
+                // release the entry, not the new one
+                log.warn(cached.file + " was removed, writing it again");
+                watermarks.remove(key);
+                release(cached.size);
+                cached = null;
+            }
+            if (cached != null) {
+                cached.users += 1;
+                ImagingMetrics.cacheHit(WATERMARK_CACHE);
+                return cached;
+            }
+        }
+        ImagingMetrics.cacheMiss(WATERMARK_CACHE);
+
+        String suffix = watermark.getFilename();
+        int pos = suffix.lastIndexOf(".");
+        if (pos > 0) {
+            suffix = suffix.substring(pos);
+        } else {
+            suffix = "";
+        }
+
+        long size = Math.max(0, watermark.getLength());
+        reserve(size);
+        File wmFile = new File(watermarksDir, key + suffix);
+        File tmpFile = new File(watermarksDir, key + "-" + UUID.randomUUID()
+                + suffix);
+        try {
+            watermark.transferTo(tmpFile);
+        } catch (IOException e) {
+            tmpFile.delete();
+            release(size);
+            throw e;
+        }
+
+        synchronized (this) {
+            CachedFile cached = watermarks.get(key);
+            if (cached != null) {
+                // Another job was faster
+                tmpFile.delete();
+                release(size);
+            } else {
+                if (!tmpFile.renameTo(wmFile)) {
+                    tmpFile.delete();
+                    release(size);
+                    throw new IOException("Cannot rename " + tmpFile + " to "
+                            + wmFile);
+                }
+                cached = new CachedFile();
+                cached.file = wmFile;
+                cached.size = size;
+                watermarks.put(key, cached);
+            }
+            cached.users += 1;
+            return cached;
+        }
+    }
+
+    protected synchronized void releaseWatermark(CachedFile inCached) {
+        inCached.users -= 1;
+        notifyAll();
+    }
+
+    /**
+     * A key that changes when the blob of the document changes: its digest,
+     * or its modification date and length when there is no digest
+     */
+    public static String getVersionKey(DocumentModel inDoc, Blob inBlob) {
+
+        String digest = inBlob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return digest;
+        }
+
+        Calendar modified = (Calendar) inDoc.getPropertyValue("dc:modified");
+        return "" + (modified == null ? 0 : modified.getTimeInMillis()) + "-"
+                + inBlob.getLength();
+    }
+
+    /**
+     * The watermark files used by a job. Must be closed (in a finally block).
+     */
+    public class Job {
+
+        protected List<CachedFile> watermarkFiles = new ArrayList<CachedFile>();
+
+        protected boolean closed = false;
+
+        protected Job() {
+        }
+
+        /**
+         * Return the watermark picture of the document, as a file. Shared with
+         * other jobs: do not modify it
+         */
+        public File getWatermarkFile(CoreSession inSession, String inDocId)
+                throws IOException {
+            CachedFile cached = ScratchSpace.this.getWatermarkFile(inSession,
+                    inDocId);
+            watermarkFiles.add(cached);
+            return cached.file;
+        }
+
+        public void close() {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            for (CachedFile cached : watermarkFiles) {
+                releaseWatermark(cached);
+            }
+            watermarkFiles.clear();
+        }
+    }
+
+}
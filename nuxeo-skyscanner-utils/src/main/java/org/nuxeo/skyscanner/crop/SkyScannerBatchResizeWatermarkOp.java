@@ -33,14 +33,17 @@ import org.nuxeo.ecm.automation.core.collectors.DocumentModelCollector;
 import org.nuxeo.ecm.automation.core.collectors.BlobCollector;
 import org.nuxeo.ecm.automation.core.util.Properties;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.IdRef;
-import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
 import org.nuxeo.runtime.transaction.TransactionHelper;
 
+import com.codahale.metrics.Timer;
+
 /**
  * Batch resize/crop/watermark, using nuxeo-labs ImageCrop operation (and other
  * operations from nuxeo)
@@ -72,163 +75,202 @@ public class SkyScannerBatchResizeWatermarkOp {
     @Param(name = "watermarkDocId", required = false)
     protected String watermarkDocId = "";
 
+    // When true, the picture views are calculated here from the picture we
+    // just produced (see PictureViewsHelper)
+    @Param(name = "computeViews", required = false)
+    protected boolean computeViews = false;
+
+    // "Smart": crop where the picture has the most details (see
+    // SmartCropHelper) instead of centering the crop
+    @Param(name = "cropMode", required = false, widget = Constants.W_OPTION, values = {
+            "Center", "Smart" })
+    protected String cropMode = "Center";
+
+    // Path of a .zip file or of a directory on the server. When set, the
+    // pictures are written there (see RenditionExport) and no document is
+    // created. Administrators only.
+    @Param(name = "exportTo", required = false)
+    protected String exportTo = "";
+
     @OperationMethod
     public DocumentModelList run(DocumentModelList inDocs)
             throws OperationException, IOException {
 
-        int newWidth = 0;
-        int newHeight = 0;
-
         // Get the final dimensions
-        if (size.equals("1200x1200")) {
-            newWidth = 1200;
-            newHeight = 1200;
-        } else if (size.equals("1200x627")) {
-            newWidth = 1200;
-            newHeight = 627;
-        } else if (size.equals("468x283")) {
-            newWidth = 468;
-            newHeight = 283;
-        }
-
-        // Get the watermark
-        DocumentModel watermarkDoc = session.getDocument(new IdRef(
-                watermarkDocId));
-        // We need a file on disc
-        Blob watermark = (Blob) watermarkDoc.getPropertyValue("file:content");
-        String suffix = watermark.getFilename();
-        int pos = suffix.lastIndexOf(".");
-        if (pos > 0) {
-            suffix = suffix.substring(pos);
-        } else {
-            suffix = "";
+        int[] profileSize = ResizeGeometry.getProfileSize(size);
+        int newWidth = profileSize[0];
+        int newHeight = profileSize[1];
+        OutputEncoding encoding = OutputEncoding.forProfile(size);
+
+        boolean exportMode = exportTo != null && !exportTo.isEmpty();
+        if (exportMode
+                && !((NuxeoPrincipal) session.getPrincipal()).isAdministrator()) {
+            throw new ClientException(
+                    "Only administrators can export to the server file system");
         }
-        File watermarkFile = File.createTempFile("SkyScannerBatch-", suffix);
-        watermark.transferTo(watermarkFile);
-        watermarkFile.deleteOnExit();
-        Framework.trackFile(watermarkFile, this);
 
         TransactionHelper.commitOrRollbackTransaction();
         TransactionHelper.startTransaction();
 
         // Process
         int count = 0;
-        for (DocumentModel doc : inDocs) {
-
-            Blob processedPict = null;
-
-            int TARGET_SIZE = 1200;
-            int origWidth = ((Long) doc.getPropertyValue("picture:info/width")).intValue();
-            int origHeight = ((Long) doc.getPropertyValue("picture:info/height")).intValue();
-
-            int widthFor1200 = 0;
-            int heightFor1200 = 0;
-            double ratio = 1.0;
-            int diff = 0;
-            int cropTop = 0;
-            int cropLeft = 0;
-
-            // ========================================
-            if (newHeight == 1200) {
-                // ========================================
-
-                if (origWidth <= origHeight) {
-                    widthFor1200 = TARGET_SIZE;
-                    diff = origWidth - TARGET_SIZE;
-                    ratio = 1 - ((double) diff / (double) origWidth);
-                    heightFor1200 = (int) ((double) origHeight * ratio);
-                } else {
-                    heightFor1200 = TARGET_SIZE;
-                    diff = origHeight - TARGET_SIZE;
-                    ratio = 1 - ((double) diff / (double) origHeight);
-                    widthFor1200 = (int) ((double) origWidth * ratio);
+        // Only what was queued is dequeued in the finally block
+        int pending = 0;
+        ScratchSpace.Job scratch = null;
+        RenditionExport export = null;
+        try {
+            ImagingMetrics.batchQueued(inDocs.size());
+            pending = inDocs.size();
+            scratch = ScratchSpace.getInstance().openJob();
+            if (exportMode) {
+                export = new RenditionExport(exportTo);
+            }
+
+            // Get the watermark. We need a file on disc (shared by the
+            // batches using the same watermark)
+            File watermarkFile = scratch.getWatermarkFile(session,
+                    watermarkDocId);
+
+            for (DocumentModel doc : inDocs) {
+
+                Blob processedPict = null;
+
+                int origWidth = ((Long) doc.getPropertyValue("picture:info/width")).intValue();
+                int origHeight = ((Long) doc.getPropertyValue("picture:info/height")).intValue();
+
+                ResizeGeometry geometry = ResizeGeometry.compute(origWidth,
+                        origHeight, newWidth, newHeight);
+
+                if ("Smart".equals(cropMode) && geometry.canMoveCrop()) {
+                    double[] window = SmartCropHelper.findBestWindow(doc,
+                            (double) newWidth / geometry.widthFor1200,
+                            (double) newHeight / geometry.heightFor1200);
+                    if (window != null) {
+                        geometry.moveCrop(window);
+                    }
                 }
 
-                // Crop must center the picture, at 0 for top.
-                if (widthFor1200 > TARGET_SIZE) {
-                    cropLeft = (widthFor1200 - TARGET_SIZE) / 2;
+                Blob originalPict = (Blob) doc.getPropertyValue("file:content");
+                String fileName = originalPict.getFilename();
+                String mimeType = originalPict.getMimeType();
+
+                // Avoid decoding the original when a picture view is big
+                // enough
+                Blob sourcePict = MiscTools.getSmallestViewBlob(doc,
+                        geometry.widthFor1200, geometry.heightFor1200);
+                if (sourcePict == null) {
+                    sourcePict = originalPict;
                 }
-                if (heightFor1200 > TARGET_SIZE) {
-                    cropTop = (heightFor1200 - TARGET_SIZE) / 2;
-                } else if (newHeight < heightFor1200) {
-                    cropTop = (heightFor1200 - newHeight) / 2;
+                ImagingMetrics.bytesIn(sourcePict);
+
+                int pos = fileName.lastIndexOf(".");
+                fileName = fileName.substring(0, pos) + "-" + newWidth + "x"
+                        + newHeight + fileName.substring(pos);
+
+                OperationContext ctx = new OperationContext(session);
+                OperationChain chain;
+                DocumentModel newPictureDoc = null;
+
+                // One slot per picture, so interactive crops can go first
+                ImagingScheduler.Slot slot = ImagingScheduler.getInstance().acquire(
+                        ImagingScheduler.Priority.BATCH);
+                try {
+                    // ==================================================
+                    // Resize to widthFor1200 x heightFor1200
+                    // ==================================================
+                    chain = new OperationChain("SkyScannerBatch_Resize");
+                    ctx.setInput(sourcePict);
+                    // Parameters for Blob.RunConverter
+                    Properties props = new Properties();
+                    props.put("targetFileName", fileName);
+                    props.put("width", "" + geometry.widthFor1200);
+                    props.put("height", "" + geometry.heightFor1200);
+
+                    chain.add("Blob.RunConverter").set("converter",
+                            "skyscannerResizePicture").set("parameters", props);
+                    processedPict = MiscTools.runTimed(automationService, ctx,
+                            chain, ImagingMetrics.RESIZE);
+                    processedPict.setMimeType(mimeType);
+
+                    // ==================================================
+                    // Crop (the resized picture)
+                    // ==================================================
+                    processedPict = MiscTools.crop(session, automationService,
+                            processedPict, geometry.cropTop, geometry.cropLeft,
+                            newWidth, newHeight, 0, 0, fileName, "");
+                    // Make sure we have our values
+                    processedPict.setMimeType(mimeType);
+
+                    // ==================================================
+                    // Watermark and encode
+                    // ==================================================
+                    processedPict = MiscTools.watermark(session, automationService,
+                            processedPict, fileName, watermarkFile.getAbsolutePath(),
+                            "NorthEast", encoding);
+                    processedPict.setMimeType(encoding.getMimeType(mimeType));
+
+                    // ==================================================
+                    // Export, or create the cropped Picture Document
+                    // ==================================================
+                    if (export != null) {
+                        export.add(processedPict);
+                    } else {
+                        newPictureDoc = MiscTools.addToCroppedPictures(
+                                session, null, processedPict, computeViews);
+                    }
+                    ImagingMetrics.bytesOut(processedPict);
+                } finally {
+                    slot.release();
+                }
+
+                // Also in export mode: a long transaction would time out
+                count += 1;
+                if ((count % 10) == 0) {
+                    session.save();
+                    TransactionHelper.commitOrRollbackTransaction();
+                    TransactionHelper.startTransaction();
+                }
+
+                if (export != null) {
+                    pending -= 1;
+                    ImagingMetrics.batchDequeued(1);
+                    continue;
+                }
+
+                // ==================================================
+                // Create the relation
+                // ==================================================
+                chain = new OperationChain("SkyScannerBatch_Relation");
+                ctx.setInput(newPictureDoc);
+                chain.add("Relations.CreateRelation").set("object", doc.getId()).set(
+                        "predicate", "http://purl.org/dc/terms/IsBasedOn");
+                Timer.Context timer = ImagingMetrics.time(ImagingMetrics.RELATION);
+                try {
+                    newPictureDoc = (DocumentModel) automationService.run(ctx,
+                            chain);
+                } catch (OperationException | RuntimeException e) {
+                    ImagingMetrics.error(ImagingMetrics.RELATION);
+                    throw e;
+                } finally {
+                    timer.stop();
                 }
-                // ========================================
-            } else {
-                // ========================================
-                // Assume 627
-                // Resize with target width of 1200
-                widthFor1200 = TARGET_SIZE;
-                diff = origWidth - TARGET_SIZE;
-                ratio = 1 - ((double) diff / (double) origWidth);
-                heightFor1200 = (int) ((double) origHeight * ratio);
-                cropTop = (heightFor1200 - newHeight) / 2;
-            }
 
-            Blob originalPict = (Blob) doc.getPropertyValue("file:content");
-            String fileName = originalPict.getFilename();
-            String mimeType = originalPict.getMimeType();
-
-            pos = fileName.lastIndexOf(".");
-            fileName = fileName.substring(0, pos) + "-" + newWidth + "x"
-                    + newHeight + fileName.substring(pos);
-
-            OperationContext ctx = new OperationContext(session);
-            OperationChain chain;
-
-            // ==================================================
-            // Resize to widthFor1200 x heightFor1200
-            // ==================================================
-            chain = new OperationChain("SkyScannerBatch_Resize");
-            ctx.setInput(originalPict);
-            // Parameters for Blob.RunConverter
-            Properties props = new Properties();
-            props.put("targetFileName", fileName);
-            props.put("width", "" + widthFor1200);
-            props.put("height", "" + heightFor1200);
-
-            chain.add("Blob.RunConverter").set("converter",
-                    "skyscannerResizePicture").set("parameters", props);
-            processedPict = (Blob) automationService.run(ctx, chain);
-            processedPict.setMimeType(mimeType);
-
-            // ==================================================
-            // Crop
-            // ==================================================
-            processedPict = MiscTools.crop(session, automationService,
-                    originalPict, cropTop, cropLeft, newWidth, newHeight, 0,
-                    0, fileName, "");
-            // Make sure we have our values
-            processedPict.setMimeType(mimeType);
-
-            // ==================================================
-            // Watermark
-            // ==================================================
-            processedPict = MiscTools.watermark(session, automationService,
-                    processedPict, fileName, watermarkFile.getAbsolutePath(),
-                    "NorthEast");
-            processedPict.setMimeType(mimeType);
-
-            // ==================================================
-            // Create the cropped Picture Document
-            // ==================================================
-            DocumentModel newPictureDoc = MiscTools.addToCroppedPictures(
-                    session, null, processedPict);
-            count += 1;
-            if ((count % 10) == 0) {
-                session.save();
-                TransactionHelper.commitOrRollbackTransaction();
-                TransactionHelper.startTransaction();
+                pending -= 1;
+                ImagingMetrics.batchDequeued(1);
             }
 
-            // ==================================================
-            // Create the relation
-            // ==================================================
-            chain = new OperationChain("SkyScannerBatch_Relation");
-            ctx.setInput(newPictureDoc);
-            chain.add("Relations.CreateRelation").set("object", doc.getId()).set(
-                    "predicate", "http://purl.org/dc/terms/IsBasedOn");
-            newPictureDoc = (DocumentModel) automationService.run(ctx, chain);
+            if (export != null) {
+                export.close();
+            }
+        } finally {
+            // Error: the remaining documents will not be processed
+            ImagingMetrics.batchDequeued(pending);
+            if (export != null) {
+                export.abort();
+            }
+            if (scratch != null) {
+                scratch.close();
+            }
         }
 
         session.save();
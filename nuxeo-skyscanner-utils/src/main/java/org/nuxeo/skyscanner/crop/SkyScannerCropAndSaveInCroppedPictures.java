@@ -44,7 +44,8 @@ import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.IdRef;
-import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Timer;
 
 /**
  * Specific operation for SkyScanner demo/POC: Basically a wrapper for the
@@ -105,6 +106,16 @@ public class SkyScannerCropAndSaveInCroppedPictures {
     @Param(name = "watermarkDocId", required = false)
     protected String watermarkDocId = "";
 
+    // When true, picture:info and the image metadata are filled from what we
+    // already know, instead of running the "imageInfo" metadata mapping
+    @Param(name = "metadataFromSource", required = false)
+    protected boolean metadataFromSource = false;
+
+    // When true, the picture views are calculated here from the picture we
+    // just produced (see PictureViewsHelper)
+    @Param(name = "computeViews", required = false)
+    protected boolean computeViews = false;
+
     @OperationMethod
     public DocumentModel run(DocumentModel inDoc) throws OperationException,
             IOException {
@@ -126,75 +137,105 @@ public class SkyScannerCropAndSaveInCroppedPictures {
                             inDoc.getId(), inDoc.getTitle()));
         }
 
-        // ============================== Get the watermark
-        File watermarkFile = MiscTools.createWMFileForDocId(session,
-                watermarkDocId);
-        Framework.trackFile(watermarkFile, this);
-
         // ============================== Get original info
         Blob originalPict = (Blob) inDoc.getPropertyValue("file:content");
         String fileName = originalPict.getFilename();
         String mimeType = originalPict.getMimeType();
+        ImagingMetrics.bytesIn(originalPict);
 
         if (targetFileNameSuffix == null || targetFileNameSuffix.isEmpty()) {
             targetFileNameSuffix = "-crop" + top + "-" + left + "-" + width
                     + "x" + height;
         }
 
-        // ============================== Crop (nuxeo-labs crop operation)
-        processedPict = MiscTools.crop(session, automationService,
-                originalPict, top, left, width, height, pictureWidth,
-                pictureHeight, targetFileName, targetFileNameSuffix);
-        // Make sure we have our values
-        processedPict.setMimeType(mimeType);
-        // RunConverter has updated the file name with our suffix. Now, we stick
-        // to it.
-        fileName = processedPict.getFilename();
-
-        // ============================== Watermark
-        String gravity;
-        switch (watermarkPosition) {
-        case "Top Left":
-            gravity = "NorthWest";
-            break;
-
-        case "Bottom Left":
-            gravity = "SouthWest";
-            break;
-
-        case "Bottom Right":
-            gravity = "SouthEast";
-            break;
-
-        default:
-            gravity = "NorthEast";
-            break;
+        // Goes before the pictures of running batches
+        DocumentModel result;
+        ImagingScheduler.Slot slot = ImagingScheduler.getInstance().acquire(
+                ImagingScheduler.Priority.INTERACTIVE);
+        try {
+            // ============================== Crop (nuxeo-labs crop operation)
+            processedPict = MiscTools.crop(session, automationService,
+                    originalPict, top, left, width, height, pictureWidth,
+                    pictureHeight, targetFileName, targetFileNameSuffix);
+            // Make sure we have our values
+            processedPict.setMimeType(mimeType);
+            // RunConverter has updated the file name with our suffix. Now, we
+            // stick to it.
+            fileName = processedPict.getFilename();
+
+            // ============================== Watermark
+            String gravity;
+            switch (watermarkPosition) {
+            case "Top Left":
+                gravity = "NorthWest";
+                break;
+
+            case "Bottom Left":
+                gravity = "SouthWest";
+                break;
+
+            case "Bottom Right":
+                gravity = "SouthEast";
+                break;
+
+            default:
+                gravity = "NorthEast";
+                break;
+            }
+
+            // (and encoding)
+            OutputEncoding encoding = OutputEncoding.forProfile(OutputEncoding.CROP_PROFILE);
+            ScratchSpace.Job scratch = ScratchSpace.getInstance().openJob();
+            try {
+                File watermarkFile = scratch.getWatermarkFile(session,
+                        watermarkDocId);
+                processedPict = MiscTools.watermark(session, automationService,
+                        processedPict, fileName, watermarkFile.getAbsolutePath(),
+                        gravity, encoding);
+            } finally {
+                scratch.close();
+            }
+            mimeType = encoding.getMimeType(mimeType);
+            processedPict.setMimeType(mimeType);
+
+            // ============================== Create the Picture document
+            title = processedPict.getFilename();
+            result = MiscTools.createCroppedPictureModel(session,
+                    title, processedPict);
+            if (metadataFromSource) {
+                long[] outputSize = getOutputSize(inDoc);
+                MiscTools.fillPictureInfo(result, inDoc, outputSize[0],
+                        outputSize[1], mimeType, !encoding.isStrip());
+            }
+            if (computeViews) {
+                PictureViewsHelper.setPictureViews(result, processedPict);
+            }
+            result = MiscTools.createAndSave(session, result);
+            ImagingMetrics.bytesOut(processedPict);
+        } finally {
+            slot.release();
         }
 
-        processedPict = MiscTools.watermark(session, automationService,
-                processedPict, fileName, watermarkFile.getAbsolutePath(),
-                gravity);
-        processedPict.setMimeType(mimeType);
-
-        // ============================== Create the Picture document
-        title = processedPict.getFilename();
-        DocumentModel result = MiscTools.addToCroppedPictures(session, title,
-                processedPict);
-
-        // ============================== WORKAROUND BUG 7.2
-        // Force trigger the metadata mapping defined in the Studio project
-        // (but ignore in case of problem)
-        try {
-            chain = new OperationChain("SkyScannerCropOne_DataMapping");
-            ctx.setInput(result);
-            chain.add(TriggerMetadataMappingOnDocument.ID).set(
-                    "metadataMappingId", "imageInfo");
-            automationService.run(ctx, chain);
-
-        } catch (Exception e) {
-            log.error(
-                    "Error getting the 'imageInfo' mapping - should be defined in the Studio project",
-                    e);
+        if (!metadataFromSource) {
+            // ============================== WORKAROUND BUG 7.2
+            // Force trigger the metadata mapping defined in the Studio project
+            // (but ignore in case of problem)
+            Timer.Context timer = ImagingMetrics.time(ImagingMetrics.METADATA_MAPPING);
+            try {
+                chain = new OperationChain("SkyScannerCropOne_DataMapping");
+                ctx.setInput(result);
+                chain.add(TriggerMetadataMappingOnDocument.ID).set(
+                        "metadataMappingId", "imageInfo");
+                automationService.run(ctx, chain);
+
+            } catch (Exception e) {
+                ImagingMetrics.error(ImagingMetrics.METADATA_MAPPING);
+                log.error(
+                        "Error getting the 'imageInfo' mapping - should be defined in the Studio project",
+                        e);
+            } finally {
+                timer.stop();
+            }
         }
 
         // ============================== Now, we create the relation
@@ -203,9 +244,47 @@ public class SkyScannerCropAndSaveInCroppedPictures {
         ctx.setInput(result);
         chain.add("Relations.CreateRelation").set("object", inDoc.getId()).set(
                 "predicate", "http://purl.org/dc/terms/IsBasedOn");
-        result = (DocumentModel) automationService.run(ctx, chain);
+        Timer.Context timer = ImagingMetrics.time(ImagingMetrics.RELATION);
+        try {
+            result = (DocumentModel) automationService.run(ctx, chain);
+        } catch (OperationException | RuntimeException e) {
+            ImagingMetrics.error(ImagingMetrics.RELATION);
+            throw e;
+        } finally {
+            timer.stop();
+        }
 
         return result;
     }
 
+    /*
+     * The crop values are expressed in a pictureWidth x pictureHeight space
+     * when these are set (the UI works on a smaller view of the picture), so
+     * the cropped area must be scaled to the original dimensions, the same way
+     * the ImageCrop operation does. The crop stops at the edges of the
+     * picture.
+     */
+    protected long[] getOutputSize(DocumentModel inDoc) {
+
+        long outW = width;
+        long outH = height;
+
+        Long origW = (Long) inDoc.getPropertyValue("picture:info/width");
+        Long origH = (Long) inDoc.getPropertyValue("picture:info/height");
+        if (origW != null && origH != null && origW > 0 && origH > 0) {
+            long outLeft = left;
+            long outTop = top;
+            if (pictureWidth > 0 && pictureHeight > 0) {
+                outW = Math.round((double) width * origW / pictureWidth);
+                outH = Math.round((double) height * origH / pictureHeight);
+                outLeft = Math.round((double) left * origW / pictureWidth);
+                outTop = Math.round((double) top * origH / pictureHeight);
+            }
+            outW = Math.max(0, Math.min(outW, origW - outLeft));
+            outH = Math.max(0, Math.min(outH, origH - outTop));
+        }
+
+        return new long[] { outW, outH };
+    }
+
 }
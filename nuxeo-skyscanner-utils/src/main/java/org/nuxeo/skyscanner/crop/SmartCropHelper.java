@@ -0,0 +1,280 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * "Smart" crop: instead of always centering the crop, find the window with
+ * the most details (edge energy) in it.
+ * <p>
+ * The energy map is calculated on the Small (or Medium) picture view, never on
+ * the original, scaled down to at most {@link #MAP_SIZE} pixels, so it costs a
+ * few milliseconds and about 64 KB. It is cached per document (and
+ * modification date), so all the size profiles of a batch reuse it.
+ *
+ * @since 7.1
+ */
+public class SmartCropHelper {
+
+    private static final Log log = LogFactory.getLog(SmartCropHelper.class);
+
+    protected static final String[] VIEW_NAMES = { "Small", "Medium" };
+
+    // Longest side of the energy map. At most 128, so the sums fit in an int
+    protected static final int MAP_SIZE = 128;
+
+    protected static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    // Weights are in [1 - CENTER_WEIGHT, 1], stored as integers
+    protected static final int WEIGHT_SCALE = 128;
+
+    // Slightly favor the center, so a flat picture is still centered
+    protected static final double CENTER_WEIGHT = 0.3;
+
+    // Access order: first entry is the least recently used. Guarded by
+    // itself.
+    protected static final LinkedHashMap<String, EnergyMap> cache = new LinkedHashMap<String, EnergyMap>(
+            16, 0.75f, true);
+
+    protected static long cacheBytes = 0;
+
+    /*
+     * Summed-area table of the energy, so the energy of any window is 4
+     * lookups
+     */
+    protected static class EnergyMap {
+
+        int width;
+
+        int height;
+
+        int[] integral;
+
+        EnergyMap(int inWidth, int inHeight) {
+            width = inWidth;
+            height = inHeight;
+            integral = new int[(inWidth + 1) * (inHeight + 1)];
+        }
+
+        long getBytes() {
+            return 4L * integral.length;
+        }
+
+        int sum(int x, int y, int w, int h) {
+            int stride = width + 1;
+            return integral[(y + h) * stride + x + w]
+                    - integral[y * stride + x + w]
+                    - integral[(y + h) * stride + x]
+                    + integral[y * stride + x];
+        }
+    }
+
+    /**
+     * Find the best crop window in the picture.
+     * <p>
+     * The window size is given as a fraction of the picture (for example,
+     * 1200/1800 when cropping 1200 pixels in a picture resized to 1800), and so
+     * is the result.
+     *
+     * @return {left, top} as fractions of the picture width/height, or null if
+     *         no picture view could be used (caller should center the crop)
+     */
+    public static double[] findBestWindow(DocumentModel inDoc,
+            double inWindowWidth, double inWindowHeight) {
+
+        EnergyMap map = getEnergyMap(inDoc);
+        if (map == null) {
+            return null;
+        }
+
+        return findBestWindow(map, inWindowWidth, inWindowHeight);
+    }
+
+    /*
+     * Exhaustive search of the window with the highest energy. Ties keep the
+     * centered window (a flat picture is centered), then the first one found
+     */
+    protected static double[] findBestWindow(EnergyMap inMap,
+            double inWindowWidth, double inWindowHeight) {
+
+        int w = Math.max(1, Math.min(inMap.width,
+                (int) Math.round(inWindowWidth * inMap.width)));
+        int h = Math.max(1, Math.min(inMap.height,
+                (int) Math.round(inWindowHeight * inMap.height)));
+
+        int maxX = inMap.width - w;
+        int maxY = inMap.height - h;
+        int bestX = maxX / 2;
+        int bestY = maxY / 2;
+        int bestScore = inMap.sum(bestX, bestY, w, h);
+        for (int y = 0; y <= maxY; y++) {
+            for (int x = 0; x <= maxX; x++) {
+                int score = inMap.sum(x, y, w, h);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+
+        return new double[] { (double) bestX / inMap.width,
+                (double) bestY / inMap.height };
+    }
+
+    protected static EnergyMap getEnergyMap(DocumentModel inDoc) {
+
+        String key = inDoc.getId();
+        Calendar modified = (Calendar) inDoc.getPropertyValue("dc:modified");
+        if (modified != null) {
+            key += ":" + modified.getTimeInMillis();
+        }
+
+        EnergyMap map;
+        synchronized (cache) {
+            map = cache.get(key);
+        }
+        if (map != null) {
+            ImagingMetrics.cacheHit(ImagingMetrics.SMART_CROP_CACHE);
+        } else {
+            ImagingMetrics.cacheMiss(ImagingMetrics.SMART_CROP_CACHE);
+            Timer.Context timer = ImagingMetrics.time(ImagingMetrics.SMART_CROP);
+            try {
+                BufferedImage image = null;
+                try {
+                    image = readSmallestView(inDoc);
+                } catch (IOException e) {
+                    ImagingMetrics.error(ImagingMetrics.SMART_CROP);
+                    log.warn("Cannot read picture view of " + inDoc.getId(), e);
+                }
+                if (image == null) {
+                    return null;
+                }
+                map = computeEnergyMap(PictureViewsHelper.scaleToFit(image,
+                        MAP_SIZE));
+                putInCache(key, map);
+            } finally {
+                timer.stop();
+            }
+        }
+
+        return map;
+    }
+
+    protected static void putInCache(String inKey, EnergyMap inMap) {
+
+        synchronized (cache) {
+            EnergyMap previous = cache.put(inKey, inMap);
+            if (previous != null) {
+                cacheBytes -= previous.getBytes();
+            }
+            cacheBytes += inMap.getBytes();
+
+            Iterator<EnergyMap> it = cache.values().iterator();
+            while (cacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+                cacheBytes -= it.next().getBytes();
+                it.remove();
+            }
+        }
+    }
+
+    protected static BufferedImage readSmallestView(DocumentModel inDoc)
+            throws IOException {
+
+        MultiviewPicture mvp = inDoc.getAdapter(MultiviewPicture.class);
+        if (mvp == null) {
+            return null;
+        }
+
+        for (String name : VIEW_NAMES) {
+            PictureView view = mvp.getView(name);
+            if (view != null && view.getBlob() != null) {
+                Blob blob = view.getBlob();
+                InputStream in = blob.getStream();
+                try {
+                    BufferedImage image = ImageIO.read(in);
+                    if (image != null) {
+                        return image;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * inImage is at most MAP_SIZE x MAP_SIZE. Energy = gradient magnitude of
+     * the luminance (|dx| + |dy|), weighted by the distance to the center.
+     */
+    protected static EnergyMap computeEnergyMap(BufferedImage inImage) {
+
+        int w = inImage.getWidth();
+        int h = inImage.getHeight();
+        int[] rgb = inImage.getRGB(0, 0, w, h, null, 0, w);
+
+        int[] lum = new int[w * h];
+        for (int i = 0; i < rgb.length; i++) {
+            int p = rgb[i];
+            lum[i] = (((p >> 16) & 0xFF) * 299 + ((p >> 8) & 0xFF) * 587 + (p & 0xFF) * 114) / 1000;
+        }
+
+        EnergyMap map = new EnergyMap(w, h);
+        int stride = w + 1;
+        double cx = w / 2.0;
+        double cy = h / 2.0;
+        double maxDist = Math.sqrt(cx * cx + cy * cy);
+        for (int y = 0; y < h; y++) {
+            int rowSum = 0;
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+                int dx = x + 1 < w ? Math.abs(lum[i + 1] - lum[i]) : 0;
+                int dy = y + 1 < h ? Math.abs(lum[i + w] - lum[i]) : 0;
+                double dist = Math.sqrt((x - cx) * (x - cx) + (y - cy)
+                        * (y - cy));
+                double weight = 1.0 - CENTER_WEIGHT * dist / maxDist;
+
+                rowSum += (int) Math.round((dx + dy) * weight * WEIGHT_SCALE);
+                map.integral[(y + 1) * stride + x + 1] = map.integral[y
+                        * stride + x + 1]
+                        + rowSum;
+            }
+        }
+
+        return map;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop.web;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.skyscanner.crop.ImagingMetrics;
+
+/**
+ * Disk cache of the pictures rendered by the /nxcrop servlet, with LRU
+ * eviction.
+ * <p>
+ * <ul>
+ * <li>skyscanner.crop.cache.dir: default is &lt;nuxeo data
+ * dir&gt;/skyscanner-crop-cache</li>
+ * <li>skyscanner.crop.cache.maxMB: default 1024</li>
+ * </ul>
+ * Files are kept after a restart (the least recently used are the ones with
+ * the oldest modification date). Keys must change when the picture or the
+ * parameters change: nothing is ever invalidated.
+ * <p>
+ * Files are opened with the lock held, so a file cannot be evicted between
+ * the lookup and the open (once opened, it stays readable after it is
+ * deleted).
+ *
+ * @since 7.1
+ */
+public class CropCache {
+
+    private static final Log log = LogFactory.getLog(CropCache.class);
+
+    public static final String DIR_PROPERTY = "skyscanner.crop.cache.dir";
+
+    public static final String MAX_MB_PROPERTY = "skyscanner.crop.cache.maxMB";
+
+    protected static final String DIR_NAME = "skyscanner-crop-cache";
+
+    protected static final String TMP_PREFIX = "tmp-";
+
+    private static CropCache instance = null;
+
+    protected final File dir;
+
+    protected final long maxBytes;
+
+    protected long usedBytes = 0;
+
+    // Access order: first entry is the least recently used
+    protected final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<String, CachedFile>(
+            16, 0.75f, true);
+
+    protected static class CachedFile {
+
+        File file;
+
+        // Size when it was added (the file may be removed by hand since)
+        long size;
+
+        CachedFile(File inFile) {
+            file = inFile;
+            size = inFile.length();
+        }
+    }
+
+    /**
+     * A cached file, opened. Must be closed (in a finally block).
+     */
+    public static class OpenedFile implements Closeable {
+
+        protected final File file;
+
+        protected final long size;
+
+        protected final InputStream stream;
+
+        protected OpenedFile(CachedFile inCached, InputStream inStream) {
+            file = inCached.file;
+            size = inCached.size;
+            stream = inStream;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public InputStream getStream() {
+            return stream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    public static synchronized CropCache getInstance() {
+        if (instance == null) {
+            instance = new CropCache();
+        }
+        return instance;
+    }
+
+    protected CropCache() {
+
+        String dirPath = Framework.getProperty(DIR_PROPERTY);
+        if (dirPath != null && !dirPath.isEmpty()) {
+            dir = new File(dirPath);
+        } else {
+            dir = new File(Environment.getDefault().getData(), DIR_NAME);
+        }
+        dir.mkdirs();
+
+        maxBytes = Long.parseLong(Framework.getProperty(MAX_MB_PROPERTY, "1024")) * 1024 * 1024;
+
+        // Index what a previous run left, oldest first
+        File[] files = dir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (f.getName().startsWith(TMP_PREFIX)) {
+                f.delete();
+            } else if (f.isFile()) {
+                add(getKey(f), new CachedFile(f));
+            }
+        }
+        evict();
+
+        log.info("Crop cache: " + dir.getAbsolutePath() + ", "
+                + entries.size() + " files, max "
+                + (maxBytes / (1024 * 1024)) + " MB");
+    }
+
+    protected static String getKey(File inFile) {
+
+        String name = inFile.getName();
+        int pos = name.indexOf(".");
+        return pos > 0 ? name.substring(0, pos) : name;
+    }
+
+    /**
+     * A key (SHA-1, hex) built from all the values
+     */
+    public static String computeKey(String... inValues) {
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String value : inValues) {
+                md.update(String.valueOf(value).getBytes("UTF-8"));
+                // Separator, so "ab", "c" and "a", "bc" differ
+                md.update((byte) 0);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Cannot happen, SHA-1 and UTF-8 are always available
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the cached file, opened, or null
+     */
+    public synchronized OpenedFile open(String inKey) {
+
+        CachedFile cached = entries.get(inKey);
+        InputStream in = null;
+        if (cached != null) {
+            try {
+                in = new FileInputStream(cached.file);
+            } catch (FileNotFoundException e) {
+                // Removed by hand
+                remove(inKey);
+            }
+        }
+
+        if (in == null) {
+            ImagingMetrics.cacheMiss(ImagingMetrics.CROP_SERVLET_CACHE);
+            return null;
+        }
+        ImagingMetrics.cacheHit(ImagingMetrics.CROP_SERVLET_CACHE);
+        cached.file.setLastModified(System.currentTimeMillis());
+
+        return new OpenedFile(cached, in);
+    }
+
+    /**
+     * Copy the blob to the cache. <code>inExtension</code> (".jpg", ...) is
+     * kept, so the type of the file is known.
+     *
+     * @return the cached file, opened
+     */
+    public OpenedFile put(String inKey, Blob inBlob, String inExtension)
+            throws IOException {
+
+        File tmpFile = new File(dir, TMP_PREFIX + UUID.randomUUID());
+        File f = new File(dir, inKey + inExtension);
+        try {
+            inBlob.transferTo(tmpFile);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            // Rendered by another request at the same time
+            remove(inKey);
+            if (!tmpFile.renameTo(f)) {
+                tmpFile.delete();
+                throw new IOException("Cannot rename " + tmpFile + " to " + f);
+            }
+            CachedFile cached = new CachedFile(f);
+            add(inKey, cached);
+            OpenedFile opened = new OpenedFile(cached, new FileInputStream(f));
+            evict();
+            return opened;
+        }
+    }
+
+    // Must be called with the lock held. Replaces (deletes) the previous file
+    protected void add(String inKey, CachedFile inCached) {
+        remove(inKey);
+        entries.put(inKey, inCached);
+        usedBytes += inCached.size;
+    }
+
+    // Must be called with the lock held
+    protected void remove(String inKey) {
+
+        CachedFile cached = entries.remove(inKey);
+        if (cached != null) {
+            usedBytes -= cached.size;
+            cached.file.delete();
+        }
+    }
+
+    /*
+     * Must be called with the lock held. Files being sent are still readable
+     * after they are deleted.
+     */
+    protected void evict() {
+
+        Iterator<CachedFile> it = entries.values().iterator();
+        // Always keep the most recent one
+        while (usedBytes > maxBytes && entries.size() > 1) {
+            CachedFile cached = it.next();
+            usedBytes -= cached.size;
+            cached.file.delete();
+            it.remove();
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop.web;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.skyscanner.crop.ImagingMetrics;
+import org.nuxeo.skyscanner.crop.ImagingScheduler;
+import org.nuxeo.skyscanner.crop.MiscTools;
+import org.nuxeo.skyscanner.crop.OutputEncoding;
+import org.nuxeo.skyscanner.crop.ScratchSpace;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Crop, resize and watermark a picture on the fly, without creating a
+ * document:
+ *
+ * <pre>
+ * /nuxeo/nxcrop/{docId}/{left},{top},{width},{height}/{W}x{H}/{watermarkDocId}
+ * </pre>
+ *
+ * <ul>
+ * <li>The crop is expressed in pixels of the original picture</li>
+ * <li>The result fits in WxH, keeping the aspect ratio</li>
+ * <li>watermarkDocId is optional</li>
+ * </ul>
+ * Same pipeline as the operations (ImageMagick), working on the smallest
+ * picture view that is big enough. The result is encoded with the "web"
+ * profile (see OutputEncoding) and cached on disk (see CropCache). The user
+ * must be able to read the picture (and the watermark).
+ *
+ * @since 7.1
+ */
+public class SkyScannerCropServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(SkyScannerCropServlet.class);
+
+    public static final String ENCODING_PROFILE = "web";
+
+    public static final String MAX_AGE_PROPERTY = "skyscanner.crop.cache.maxAgeSeconds";
+
+    // Avoid rendering huge pictures on demand
+    public static final int MAX_OUTPUT_SIZE = 4000;
+
+    protected static final String GRAVITY = "NorthEast";
+
+    /*
+     * The values of the URL
+     */
+    protected static class CropRequest {
+
+        String docId;
+
+        long left, top, width, height;
+
+        int outWidth, outHeight;
+
+        String watermarkDocId = null;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+
+        CropRequest cropRequest = parse(req.getPathInfo());
+        if (cropRequest == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Expected /nxcrop/{docId}/{left},{top},{width},{height}/{W}x{H}[/{watermarkDocId}]");
+            return;
+        }
+
+        boolean txStarted = false;
+        if (!TransactionHelper.isTransactionActive()) {
+            txStarted = TransactionHelper.startTransaction();
+        }
+        CoreSession session = null;
+        try {
+            session = CoreInstance.openCoreSession(null);
+            send(session, cropRequest, req, resp);
+
+        } catch (DocumentSecurityException e) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+        } catch (OperationException | RuntimeException e) {
+            ImagingMetrics.error(ImagingMetrics.CROP_SERVLET);
+            log.error("Cannot render " + req.getPathInfo(), e);
+            if (!resp.isCommitted()) {
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } catch (IOException e) {
+            if (resp.isCommitted()) {
+                // Most likely the client went away while we were sending
+                log.debug("Cannot send " + req.getPathInfo(), e);
+            } else {
+                ImagingMetrics.error(ImagingMetrics.CROP_SERVLET);
+                log.error("Cannot render " + req.getPathInfo(), e);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    protected void send(CoreSession inSession, CropRequest inRequest,
+            HttpServletRequest req, HttpServletResponse resp)
+            throws IOException, OperationException {
+
+        IdRef docRef = new IdRef(inRequest.docId);
+        if (!inSession.exists(docRef)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        DocumentModel doc = inSession.getDocument(docRef);
+        Blob original = doc.hasFacet("Picture") ? (Blob) doc.getPropertyValue("file:content")
+                : null;
+        if (original == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String watermarkVersion = "";
+        if (inRequest.watermarkDocId != null) {
+            IdRef wmRef = new IdRef(inRequest.watermarkDocId);
+            if (!inSession.exists(wmRef)) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            DocumentModel wmDoc = inSession.getDocument(wmRef);
+            watermarkVersion = ScratchSpace.getVersionKey(wmDoc,
+                    (Blob) wmDoc.getPropertyValue("file:content"));
+        }
+
+        OutputEncoding encoding = OutputEncoding.forProfile(ENCODING_PROFILE);
+        String key = CropCache.computeKey(inRequest.docId,
+                ScratchSpace.getVersionKey(doc, original), "" + inRequest.left,
+                "" + inRequest.top, "" + inRequest.width,
+                "" + inRequest.height, "" + inRequest.outWidth,
+                "" + inRequest.outHeight, inRequest.watermarkDocId,
+                watermarkVersion, encoding.getCacheKey());
+        String etag = "\"" + key + "\"";
+
+        // "private": the picture requires authentication, proxies must not
+        // keep it
+        resp.setHeader("Cache-Control", "private, max-age="
+                + Framework.getProperty(MAX_AGE_PROPERTY, "86400"));
+        resp.setHeader("ETag", etag);
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        CropCache cache = CropCache.getInstance();
+        CropCache.OpenedFile cached = cache.open(key);
+        if (cached == null) {
+            Blob result = render(inSession, doc, original, inRequest, encoding);
+            cached = cache.put(key, result, getExtension(result.getFilename()));
+        }
+
+        try {
+            resp.setContentType(getMimeType(cached.getFile()));
+            resp.setContentLength((int) cached.getSize());
+            FileUtils.copy(cached.getStream(), resp.getOutputStream());
+        } finally {
+            cached.close();
+        }
+    }
+
+    /*
+     * Crop, resize, watermark and encode. Interactive priority: the user is
+     * waiting.
+     */
+    protected Blob render(CoreSession inSession, DocumentModel inDoc,
+            Blob inOriginal, CropRequest inRequest, OutputEncoding inEncoding)
+            throws IOException, OperationException {
+
+        AutomationService as = Framework.getService(AutomationService.class);
+        long origWidth = (Long) inDoc.getPropertyValue("picture:info/width");
+        long origHeight = (Long) inDoc.getPropertyValue("picture:info/height");
+        String fileName = inDoc.getId() + getExtension(inOriginal.getFilename());
+
+        // The crop, in the view, must be at least WxH. Crop values are scaled
+        // by ImageCrop, from origWidth x origHeight to the view.
+        int minWidth = (int) Math.ceil((double) origWidth * inRequest.outWidth
+                / inRequest.width);
+        int minHeight = (int) Math.ceil((double) origHeight
+                * inRequest.outHeight / inRequest.height);
+        Blob source = MiscTools.getSmallestViewBlob(inDoc, minWidth, minHeight);
+        if (source == null) {
+            source = inOriginal;
+        }
+
+        Timer.Context timer = ImagingMetrics.time(ImagingMetrics.CROP_SERVLET);
+        ImagingScheduler.Slot slot = ImagingScheduler.getInstance().acquire(
+                ImagingScheduler.Priority.INTERACTIVE);
+        ScratchSpace.Job scratch = ScratchSpace.getInstance().openJob();
+        try {
+            Blob result = MiscTools.crop(inSession, as, source, inRequest.top,
+                    inRequest.left, inRequest.width, inRequest.height,
+                    origWidth, origHeight, fileName, "");
+            result.setMimeType(inOriginal.getMimeType());
+
+            OperationContext ctx = new OperationContext(inSession);
+            ctx.setInput(result);
+            OperationChain chain = new OperationChain("SkyScannerCropServlet_Resize");
+            // Parameters for Blob.RunConverter
+            Properties props = new Properties();
+            props.put("targetFileName", fileName);
+            props.put("width", "" + inRequest.outWidth);
+            props.put("height", "" + inRequest.outHeight);
+            chain.add("Blob.RunConverter").set("converter",
+                    "skyscannerResizePicture").set("parameters", props);
+            result = MiscTools.runTimed(as, ctx, chain, ImagingMetrics.RESIZE);
+
+            if (inRequest.watermarkDocId != null) {
+                File watermarkFile = scratch.getWatermarkFile(inSession,
+                        inRequest.watermarkDocId);
+                result = MiscTools.watermark(inSession, as, result, fileName,
+                        watermarkFile.getAbsolutePath(), GRAVITY, inEncoding);
+            } else {
+                result = MiscTools.encode(inSession, as, result, fileName,
+                        inEncoding);
+            }
+
+            return result;
+
+        } finally {
+            scratch.close();
+            slot.release();
+            timer.stop();
+        }
+    }
+
+    /*
+     * /{docId}/{left},{top},{width},{height}/{W}x{H}[/{watermarkDocId}]
+     */
+    protected static CropRequest parse(String inPath) {
+
+        if (inPath == null) {
+            return null;
+        }
+        String[] parts = inPath.split("/");
+        // parts[0] is empty (leading "/")
+        if (parts.length < 4 || parts.length > 5 || parts[1].isEmpty()) {
+            return null;
+        }
+
+        CropRequest result = new CropRequest();
+        result.docId = parts[1];
+        try {
+            String[] crop = parts[2].split(",");
+            String[] size = parts[3].toLowerCase().split("x");
+            if (crop.length != 4 || size.length != 2) {
+                return null;
+            }
+            result.left = Long.parseLong(crop[0]);
+            result.top = Long.parseLong(crop[1]);
+            result.width = Long.parseLong(crop[2]);
+            result.height = Long.parseLong(crop[3]);
+            result.outWidth = Integer.parseInt(size[0]);
+            result.outHeight = Integer.parseInt(size[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (result.left < 0 || result.top < 0 || result.width <= 0
+                || result.height <= 0 || result.outWidth <= 0
+                || result.outHeight <= 0
+                || result.outWidth > MAX_OUTPUT_SIZE
+                || result.outHeight > MAX_OUTPUT_SIZE) {
+            return null;
+        }
+
+        if (parts.length == 5 && !parts[4].isEmpty()) {
+            result.watermarkDocId = parts[4];
+        }
+
+        return result;
+    }
+
+    protected static String getExtension(String inFileName) {
+
+        int pos = inFileName == null ? -1 : inFileName.lastIndexOf(".");
+        return pos > 0 ? inFileName.substring(pos).toLowerCase() : "";
+    }
+
+    protected static String getMimeType(File inFile) {
+
+        String ext = getExtension(inFile.getName());
+        if (ext.isEmpty()) {
+            return "application/octet-stream";
+        }
+        ext = ext.substring(1);
+        if (ext.equals("jpg")) {
+            ext = "jpeg";
+        } else if (ext.equals("tif")) {
+            ext = "tiff";
+        }
+        return "image/" + ext;
+    }
+
+}
@@ -215,7 +215,9 @@ SkyscannerCrop = {
 				    		pictureWidth  : gTheImg.width(),
 				    		pictureHeight : gTheImg.height(),
 				    		watermarkDocId: gSelectWM.val(),
-				    		watermarkPosition: gWMPosition.val()
+				    		watermarkPosition: gWMPosition.val(),
+				    		metadataFromSource: true,
+				    		computeViews: true
 				    	},
 
 				context: {},
@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.ClientException;
+
+public class TestImagingScheduler {
+
+    protected static final long WAIT_MILLIS = 100;
+
+    @Test
+    public void batchesDoNotUseTheReservedSlots() {
+
+        ImagingScheduler scheduler = new ImagingScheduler(3, 1, WAIT_MILLIS);
+        ImagingScheduler.Slot batch1 = scheduler.acquire(ImagingScheduler.Priority.BATCH);
+        ImagingScheduler.Slot batch2 = scheduler.acquire(ImagingScheduler.Priority.BATCH);
+
+        scheduler.lock.lock();
+        try {
+            assertFalse(scheduler.canRun(false));
+            assertTrue(scheduler.canRun(true));
+        } finally {
+            scheduler.lock.unlock();
+        }
+
+        // The reserved slot
+        ImagingScheduler.Slot interactive = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+        assertEquals(3, scheduler.running);
+
+        interactive.release();
+        batch1.release();
+        batch2.release();
+        assertEquals(0, scheduler.running);
+        assertEquals(0, scheduler.runningBatch);
+    }
+
+    @Test
+    public void batchesWaitForInteractiveRequests() throws Exception {
+
+        ImagingScheduler scheduler = new ImagingScheduler(2, 0, 10000);
+        ImagingScheduler.Slot interactive = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+        ImagingScheduler.Slot batch = scheduler.acquire(ImagingScheduler.Priority.BATCH);
+
+        Waiter interactiveWaiter = new Waiter(scheduler,
+                ImagingScheduler.Priority.INTERACTIVE);
+        interactiveWaiter.start();
+        waitForQueued(scheduler, 1, 0);
+        Waiter batchWaiter = new Waiter(scheduler,
+                ImagingScheduler.Priority.BATCH);
+        batchWaiter.start();
+        waitForQueued(scheduler, 1, 1);
+
+        // One slot for two waiting requests: the interactive one gets it
+        batch.release();
+        interactiveWaiter.join(10000);
+        assertNotNull(interactiveWaiter.slot);
+        batchWaiter.join(WAIT_MILLIS);
+        assertNull(batchWaiter.slot);
+
+        interactiveWaiter.slot.release();
+        batchWaiter.join(10000);
+        assertNotNull(batchWaiter.slot);
+
+        interactive.release();
+        batchWaiter.slot.release();
+        assertEquals(0, scheduler.running);
+    }
+
+    @Test
+    public void batchesRunOnceTheInteractiveRequestGotItsSlot()
+            throws Exception {
+
+        // Several slots freed at once: a batch woken up before the
+        // interactive request took its slot must be woken up again
+        for (int i = 0; i < 20; i++) {
+            ImagingScheduler scheduler = new ImagingScheduler(3, 0, 10000);
+            ImagingScheduler.Slot slot1 = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+            ImagingScheduler.Slot slot2 = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+            ImagingScheduler.Slot slot3 = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+
+            Waiter batchWaiter = new Waiter(scheduler,
+                    ImagingScheduler.Priority.BATCH);
+            batchWaiter.start();
+            Waiter interactiveWaiter = new Waiter(scheduler,
+                    ImagingScheduler.Priority.INTERACTIVE);
+            interactiveWaiter.start();
+            waitForQueued(scheduler, 1, 1);
+
+            slot1.release();
+            slot2.release();
+            interactiveWaiter.join(10000);
+            batchWaiter.join(10000);
+            assertNotNull(interactiveWaiter.slot);
+            assertNotNull(batchWaiter.slot);
+
+            interactiveWaiter.slot.release();
+            batchWaiter.slot.release();
+            slot3.release();
+            assertEquals(0, scheduler.running);
+        }
+    }
+
+    @Test
+    public void batchesAlwaysHaveOneSlot() {
+
+        ImagingScheduler scheduler = new ImagingScheduler(2, 2, WAIT_MILLIS);
+        assertEquals(1, scheduler.maxBatch);
+
+        ImagingScheduler.Slot batch = scheduler.acquire(ImagingScheduler.Priority.BATCH);
+        try {
+            scheduler.acquire(ImagingScheduler.Priority.BATCH);
+            fail("Only one batch slot");
+        } catch (ClientException e) {
+            // Expected
+        } finally {
+            batch.release();
+        }
+        assertEquals(0, scheduler.waitingBatch);
+    }
+
+    @Test
+    public void acquireFailsAfterTheWait() {
+
+        ImagingScheduler scheduler = new ImagingScheduler(1, 0, WAIT_MILLIS);
+        ImagingScheduler.Slot slot = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+
+        long start = System.currentTimeMillis();
+        try {
+            scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+            fail("No slot should be free");
+        } catch (ClientException e) {
+            assertTrue(System.currentTimeMillis() - start >= WAIT_MILLIS);
+        }
+        assertEquals(0, scheduler.waitingInteractive);
+        assertEquals(1, scheduler.running);
+
+        // Released twice: counted once
+        slot.release();
+        slot.release();
+        assertEquals(0, scheduler.running);
+        scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE).release();
+    }
+
+    @Test
+    public void releaseWakesUpAWaitingRequest() throws Exception {
+
+        final ImagingScheduler scheduler = new ImagingScheduler(1, 0, 10000);
+        ImagingScheduler.Slot slot = scheduler.acquire(ImagingScheduler.Priority.INTERACTIVE);
+
+        final boolean[] acquired = { false };
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                scheduler.acquire(ImagingScheduler.Priority.BATCH).release();
+                acquired[0] = true;
+            }
+        };
+        t.start();
+        t.join(WAIT_MILLIS);
+        assertFalse(acquired[0]);
+
+        slot.release();
+        t.join(10000);
+        assertTrue(acquired[0]);
+    }
+
+    protected static void waitForQueued(ImagingScheduler inScheduler,
+            int inInteractive, int inBatch) throws InterruptedException {
+
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end) {
+            inScheduler.lock.lock();
+            try {
+                if (inScheduler.waitingInteractive == inInteractive
+                        && inScheduler.waitingBatch == inBatch) {
+                    return;
+                }
+            } finally {
+                inScheduler.lock.unlock();
+            }
+            Thread.sleep(5);
+        }
+        fail("Requests not queued");
+    }
+
+    // Acquires a slot and keeps it
+    protected static class Waiter extends Thread {
+
+        protected final ImagingScheduler scheduler;
+
+        protected final ImagingScheduler.Priority priority;
+
+        protected volatile ImagingScheduler.Slot slot;
+
+        protected Waiter(ImagingScheduler inScheduler,
+                ImagingScheduler.Priority inPriority) {
+            scheduler = inScheduler;
+            priority = inPriority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                slot = scheduler.acquire(priority);
+            } catch (ClientException e) {
+                // Timed out: slot stays null
+            }
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
+@Deploy({ "org.nuxeo.ecm.platform.commandline.executor",
+        "org.nuxeo.ecm.platform.convert", "org.nuxeo.ecm.platform.picture.api",
+        "org.nuxeo.ecm.platform.picture.core" })
+public class TestPictureViewsHelper {
+
+    @Inject
+    protected CoreSession session;
+
+    protected Blob createJpeg(int inWidth, int inHeight) throws Exception {
+
+        BufferedImage image = new BufferedImage(inWidth, inHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.BLUE);
+            g.fillRect(0, 0, inWidth / 2, inHeight / 2);
+        } finally {
+            g.dispose();
+        }
+
+        File f = File.createTempFile("TestPictureViewsHelper-", ".jpg");
+        f.deleteOnExit();
+        ImageIO.write(image, "jpg", f);
+
+        Blob blob = new FileBlob(f);
+        blob.setFilename("picture-" + inWidth + "x" + inHeight + ".jpg");
+        blob.setMimeType("image/jpeg");
+        return blob;
+    }
+
+    @Test
+    public void computeViewsSetsThePictureInfo() throws Exception {
+
+        DocumentModel doc = MiscTools.addToCroppedPictures(session, null,
+                createJpeg(1600, 900), true);
+        doc = session.getDocument(doc.getRef());
+
+        assertEquals(1600L, doc.getPropertyValue("picture:info/width"));
+        assertEquals(900L, doc.getPropertyValue("picture:info/height"));
+        assertEquals("JPEG", doc.getPropertyValue("picture:info/format"));
+        assertEquals("sRGB", doc.getPropertyValue("picture:info/colorSpace"));
+        assertEquals(8L, doc.getPropertyValue("picture:info/depth"));
+
+        List<?> views = (List<?>) doc.getPropertyValue(PictureViewsHelper.VIEWS_PROPERTY);
+        assertEquals(5, views.size());
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestResizeGeometry {
+
+    @Test
+    public void landscapeIsCenteredInTheSquare() {
+
+        ResizeGeometry g = ResizeGeometry.compute(1800, 1200, 1200, 1200);
+        assertEquals(1800, g.widthFor1200);
+        assertEquals(1200, g.heightFor1200);
+        assertEquals(300, g.cropLeft);
+        assertEquals(0, g.cropTop);
+        assertTrue(g.canMoveCrop());
+    }
+
+    @Test
+    public void cropEqualToThePictureCannotMove() {
+
+        ResizeGeometry g = ResizeGeometry.compute(2400, 2400, 1200, 1200);
+        assertEquals(1200, g.widthFor1200);
+        assertEquals(1200, g.heightFor1200);
+        assertFalse(g.canMoveCrop());
+
+        // Whatever the window, the crop stays at 0,0
+        g.moveCrop(new double[] { 0.5, 0.5 });
+        assertEquals(0, g.cropLeft);
+        assertEquals(0, g.cropTop);
+    }
+
+    @Test
+    public void moveCropIsClampedToThePicture() {
+
+        ResizeGeometry g = ResizeGeometry.compute(1800, 1200, 1200, 1200);
+
+        g.moveCrop(new double[] { 0.1, 0.0 });
+        assertEquals(180, g.cropLeft);
+        assertEquals(0, g.cropTop);
+
+        // Past the right border
+        g.moveCrop(new double[] { 0.9, 0.9 });
+        assertEquals(600, g.cropLeft);
+        assertEquals(0, g.cropTop);
+
+        // Before the left border
+        g.moveCrop(new double[] { -0.1, -0.1 });
+        assertEquals(0, g.cropLeft);
+        assertEquals(0, g.cropTop);
+    }
+
+    @Test
+    public void bannerCropMovesVertically() {
+
+        ResizeGeometry g = ResizeGeometry.compute(1600, 1200, 1200, 627);
+        assertEquals(1200, g.widthFor1200);
+        assertEquals(900, g.heightFor1200);
+        assertEquals(136, g.cropTop);
+        assertTrue(g.canMoveCrop());
+
+        g.moveCrop(new double[] { 0.5, 0.1 });
+        assertEquals(0, g.cropLeft);
+        assertEquals(90, g.cropTop);
+
+        g.moveCrop(new double[] { 0.0, 1.0 });
+        assertEquals(273, g.cropTop);
+    }
+
+}
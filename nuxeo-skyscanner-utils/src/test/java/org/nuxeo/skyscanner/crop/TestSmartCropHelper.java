@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+import org.nuxeo.skyscanner.crop.SmartCropHelper.EnergyMap;
+
+public class TestSmartCropHelper {
+
+    protected static final double DELTA = 0.0001;
+
+    @Test
+    public void sumMatchesTheEnergyOfTheWindow() {
+
+        int[][] energy = { { 1, 2, 3, 4 }, { 5, 6, 7, 8 }, { 9, 10, 11, 12 } };
+        EnergyMap map = mapOf(energy);
+
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                for (int h = 1; y + h <= 3; h++) {
+                    for (int w = 1; x + w <= 4; w++) {
+                        int expected = 0;
+                        for (int j = y; j < y + h; j++) {
+                            for (int i = x; i < x + w; i++) {
+                                expected += energy[j][i];
+                            }
+                        }
+                        assertEquals(expected, map.sum(x, y, w, h));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onePixelMap() {
+
+        EnergyMap map = mapOf(new int[][] { { 7 } });
+        assertEquals(7, map.sum(0, 0, 1, 1));
+
+        // The window is at least one pixel, and at most the map
+        assertWindow(0.0, 0.0, SmartCropHelper.findBestWindow(map, 0.1, 0.1));
+        assertWindow(0.0, 0.0, SmartCropHelper.findBestWindow(map, 1.0, 1.0));
+    }
+
+    @Test
+    public void windowEqualToTheMap() {
+
+        EnergyMap map = mapOf(new int[10][10]);
+        assertWindow(0.0, 0.0, SmartCropHelper.findBestWindow(map, 1.0, 1.0));
+        assertWindow(0.0, 0.0, SmartCropHelper.findBestWindow(map, 1.5, 1.5));
+    }
+
+    @Test
+    public void flatMapIsCentered() {
+
+        EnergyMap map = mapOf(new int[10][10]);
+        assertWindow(0.3, 0.3, SmartCropHelper.findBestWindow(map, 0.4, 0.4));
+    }
+
+    @Test
+    public void windowContainsTheDetails() {
+
+        int[][] energy = new int[10][10];
+        energy[1][8] = 100;
+        EnergyMap map = mapOf(energy);
+
+        // 4x4 windows containing (8, 1) start at x in [5, 6], y in [0, 1]:
+        // the first one found is kept
+        assertWindow(0.5, 0.0, SmartCropHelper.findBestWindow(map, 0.4, 0.4));
+
+        // Strongest area wins
+        energy[6][2] = 60;
+        energy[7][3] = 60;
+        map = mapOf(energy);
+        assertWindow(0.0, 0.4, SmartCropHelper.findBestWindow(map, 0.4, 0.4));
+    }
+
+    @Test
+    public void offsetsAreClampedAtTheBorders() {
+
+        int[][] energy = new int[10][10];
+        energy[9][9] = 100;
+        EnergyMap map = mapOf(energy);
+        assertWindow(0.6, 0.6, SmartCropHelper.findBestWindow(map, 0.4, 0.4));
+
+        // Full height: only moves horizontally
+        assertWindow(0.6, 0.0, SmartCropHelper.findBestWindow(map, 0.4, 1.0));
+    }
+
+    @Test
+    public void energyIsOnTheEdges() {
+
+        // Black on the 2 left columns, white elsewhere
+        BufferedImage image = new BufferedImage(8, 8,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 8, 8);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, 2, 8);
+        g.dispose();
+
+        EnergyMap map = SmartCropHelper.computeEnergyMap(image);
+        assertEquals(8, map.width);
+        assertEquals(8, map.height);
+        assertTrue(map.sum(1, 0, 1, 8) > 0);
+        assertEquals(0, map.sum(0, 0, 1, 8));
+        assertEquals(0, map.sum(2, 0, 6, 8));
+        assertWindow(0.0, 0.0, SmartCropHelper.findBestWindow(map, 0.25, 1.0));
+    }
+
+    @Test
+    public void flatPictureHasNoEnergy() {
+
+        BufferedImage image = new BufferedImage(16, 9,
+                BufferedImage.TYPE_INT_RGB);
+        EnergyMap map = SmartCropHelper.computeEnergyMap(image);
+        assertEquals(0, map.sum(0, 0, 16, 9));
+    }
+
+    protected static EnergyMap mapOf(int[][] inEnergy) {
+
+        int height = inEnergy.length;
+        int width = inEnergy[0].length;
+        EnergyMap map = new EnergyMap(width, height);
+        int stride = width + 1;
+        for (int y = 0; y < height; y++) {
+            int rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                rowSum += inEnergy[y][x];
+                map.integral[(y + 1) * stride + x + 1] = map.integral[y
+                        * stride + x + 1]
+                        + rowSum;
+            }
+        }
+        return map;
+    }
+
+    protected static void assertWindow(double inLeft, double inTop,
+            double[] inWindow) {
+        assertEquals(inLeft, inWindow[0], DELTA);
+        assertEquals(inTop, inWindow[1], DELTA);
+    }
+
+}
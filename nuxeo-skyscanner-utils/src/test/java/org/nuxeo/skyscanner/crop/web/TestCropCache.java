@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestCropCache {
+
+    @Test
+    public void keyIsAnSha1() {
+
+        String key = CropCache.computeKey("doc", "12", "34");
+        assertEquals(40, key.length());
+        assertTrue(key.matches("[0-9a-f]+"));
+        assertEquals(key, CropCache.computeKey("doc", "12", "34"));
+    }
+
+    @Test
+    public void keyChangesWithEachValue() {
+
+        String key = CropCache.computeKey("doc", "12", "34");
+        assertFalse(key.equals(CropCache.computeKey("doc", "12", "35")));
+        assertFalse(key.equals(CropCache.computeKey("doc2", "12", "34")));
+        assertFalse(key.equals(CropCache.computeKey("doc", "34", "12")));
+    }
+
+    @Test
+    public void valuesAreSeparated() {
+
+        assertFalse(CropCache.computeKey("ab", "c").equals(
+                CropCache.computeKey("a", "bc")));
+        assertFalse(CropCache.computeKey("a", "").equals(
+                CropCache.computeKey("a")));
+    }
+
+    @Test
+    public void nullValuesAreAccepted() {
+
+        // No watermark
+        String key = CropCache.computeKey("doc", null, "");
+        assertEquals(40, key.length());
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.skyscanner.crop.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.nuxeo.skyscanner.crop.web.SkyScannerCropServlet.CropRequest;
+
+public class TestSkyScannerCropServlet {
+
+    @Test
+    public void parseWithWatermark() {
+
+        CropRequest request = SkyScannerCropServlet.parse("/abc-123/10,20,300,400/1200x627/wm-456");
+        assertNotNull(request);
+        assertEquals("abc-123", request.docId);
+        assertEquals(10, request.left);
+        assertEquals(20, request.top);
+        assertEquals(300, request.width);
+        assertEquals(400, request.height);
+        assertEquals(1200, request.outWidth);
+        assertEquals(627, request.outHeight);
+        assertEquals("wm-456", request.watermarkDocId);
+    }
+
+    @Test
+    public void parseWithoutWatermark() {
+
+        CropRequest request = SkyScannerCropServlet.parse("/abc/0,0,300,400/468X283");
+        assertNotNull(request);
+        assertEquals(468, request.outWidth);
+        assertEquals(283, request.outHeight);
+        assertNull(request.watermarkDocId);
+
+        // Trailing "/"
+        request = SkyScannerCropServlet.parse("/abc/0,0,300,400/468x283/");
+        assertNotNull(request);
+        assertNull(request.watermarkDocId);
+    }
+
+    @Test
+    public void parseRejectsBadPaths() {
+
+        String[] paths = { null, "", "/", "/abc", "/abc/0,0,300,400",
+                "//0,0,300,400/468x283", "/abc/0,0,300/468x283",
+                "/abc/0,0,300,400,5/468x283", "/abc/0,0,300,400/468",
+                "/abc/a,0,300,400/468x283", "/abc/0,0,300,400/468xb",
+                "/abc/0,0,300,400/468x283/wm/more" };
+        for (String path : paths) {
+            assertNull(path, SkyScannerCropServlet.parse(path));
+        }
+    }
+
+    @Test
+    public void parseRejectsBadValues() {
+
+        String[] paths = { "/abc/-1,0,300,400/468x283",
+                "/abc/0,-1,300,400/468x283", "/abc/0,0,0,400/468x283",
+                "/abc/0,0,300,0/468x283", "/abc/0,0,300,400/0x283",
+                "/abc/0,0,300,400/468x0",
+                "/abc/0,0,300,400/" + (SkyScannerCropServlet.MAX_OUTPUT_SIZE + 1) + "x283",
+                "/abc/0,0,300,400/468x" + (SkyScannerCropServlet.MAX_OUTPUT_SIZE + 1) };
+        for (String path : paths) {
+            assertNull(path, SkyScannerCropServlet.parse(path));
+        }
+    }
+
+}